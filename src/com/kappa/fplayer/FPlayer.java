@@ -1,23 +1,42 @@
 package com.kappa.fplayer;
 
+import com.kappa.fplayer.analysis.Analyzer;
+import com.kappa.fplayer.analysis.BatchAnalyzer;
+import com.kappa.fplayer.fft.RealFftPlan;
 import com.kappa.fplayer.graphics.Animator;
 import com.kappa.fplayer.graphics.TagEditor;
+import com.kappa.fplayer.monitor.Metrics;
+import com.kappa.fplayer.monitor.StartupTimeline;
 import com.kappa.fplayer.sound.AudioReader;
 import com.kappa.fplayer.sound.MicrophoneReader;
+import com.kappa.fplayer.sound.Playlist;
+import com.kappa.fplayer.sound.SoundReader;
+import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.sound.sampled.AudioSystem;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.filechooser.FileSystemView;
+import org.jaudiotagger.audio.AudioFileIO;
 
 /**
  * This class will initialize the main frame with its components itself.
@@ -26,8 +45,6 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * <a href="http://www.javazoom.net/mp3spi/sources.html">Used MP3 library (MP3SPI 1.9.5) URL</a>
  * <a href="http://www.jthink.net/jaudiotagger/">Used audio tagging library (JAudioTagger)</a>
  * 
- * <p><b>TODO:</b> Animator's double-buffering
- * 
  * @author      Vojtech Vasek
  * @version     1.0
  */
@@ -45,21 +62,43 @@ public class FPlayer {
      * Percentual coverage of the desktop height.
      */
     public static final int    DEFAULT_HEIGHT_PART = 70;
+    /**
+     * How often is the status line updated, in milliseconds.
+     */
+    public static final int    DEFAULT_STATUS_PERIOD = 250;
 
     private JFrame jf;
     private Animator anim;
     private AudioReader ar;
     private MicrophoneReader mr;
     private TagEditor te;
+    private JLabel statusLabel;
     
     private String lastDir = ".";
-    private JMenuItem startItem, stopItem, tagItem;
+    private JMenuItem startItem, stopItem, goToItem, nextItem, tagItem;
     private File audioFile;
+    private final Playlist playlist = new Playlist();
+    private JFileChooser fileChooser;
     
     /**
      * Start the main program, show the frame.
      */
     public FPlayer() {
+        this(Collections.<File>emptyList());
+    }
+    
+    /**
+     * Start the main program, show the frame and play given files.
+     * 
+     * @param files files to be played one after another, can be empty
+     */
+    public FPlayer(List<File> files) {
+        if (!files.isEmpty()) {
+            audioFile = files.get(0);
+            for (File file : files.subList(1, files.size())) {
+                playlist.add(file);
+            }
+        }
         showFrame();
     }
     
@@ -77,6 +116,8 @@ public class FPlayer {
         jf.setLocation((dsize.width - jf.getWidth())/2, (dsize.height - jf.getHeight())/2);
         Container c = jf.getContentPane();
         
+        // Animator is a heavyweight canvas, lightweight menus would be hidden under it
+        JPopupMenu.setDefaultLightWeightPopupEnabled(false);
         JMenuBar menuBar = new JMenuBar();
 
         // Menu tab for opening new audio file and similar
@@ -86,11 +127,7 @@ public class FPlayer {
         JMenuItem openItem = new JMenuItem("Open File");
         openItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, ActionEvent.CTRL_MASK));
         openItem.addActionListener((ActionEvent e) -> {
-            JFileChooser fCh = new JFileChooser(lastDir);
-            fCh.setAcceptAllFileFilterUsed(false);
-            fCh.addChoosableFileFilter(new FileNameExtensionFilter("Audio files", "wav", "mp3", "ogg"));
-            fCh.setFileSelectionMode(JFileChooser.FILES_ONLY);
-            fCh.setMultiSelectionEnabled(false);
+            JFileChooser fCh = createChooser(false);
             if (fCh.showOpenDialog(jf) == JFileChooser.APPROVE_OPTION) {
                 File selectedFile = fCh.getSelectedFile();
                 lastDir = selectedFile.getParent();
@@ -133,15 +170,7 @@ public class FPlayer {
         // Start playing music
         startItem = new JMenuItem("Play");
         startItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, ActionEvent.CTRL_MASK));
-        startItem.addActionListener((e) -> {
-            terminateFileInput();
-            terminateMicrophoneInput();
-            
-            ar = new AudioReader(anim, audioFile);
-            ar.start();
-            
-            stopItem.setEnabled(true);
-        });
+        startItem.addActionListener((e) -> play());
         startItem.setEnabled(false);
         // Stop playing music
         stopItem = new JMenuItem("Stop");
@@ -151,8 +180,65 @@ public class FPlayer {
             terminateFileInput();
             
             stopItem.setEnabled(false);
+            goToItem.setEnabled(false);
+            nextItem.setEnabled(false);
         });
         stopItem.setEnabled(false);
+        // Queue files, which will be played after the current one without any gap
+        JMenuItem queueItem = new JMenuItem("Add to queue");
+        queueItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_E, ActionEvent.CTRL_MASK));
+        queueItem.addActionListener((e) -> {
+            JFileChooser fCh = createChooser(true);
+            if (fCh.showOpenDialog(jf) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            for (File file : fCh.getSelectedFiles()) {
+                lastDir = file.getParent();
+                if (audioFile == null) {
+                    // Nothing to queue after, the first file is opened instead
+                    audioFile = file;
+                    startItem.setEnabled(true);
+                    tagItem.setEnabled(true);
+                } else {
+                    playlist.add(file);
+                }
+            }
+        });
+        // Continue with the next queued file
+        nextItem = new JMenuItem("Next in queue");
+        nextItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, ActionEvent.CTRL_MASK));
+        nextItem.addActionListener((e) -> {
+            if (ar != null) {
+                ar.skip();
+            }
+        });
+        nextItem.setEnabled(false);
+        JMenuItem clearItem = new JMenuItem("Clear queue");
+        clearItem.addActionListener((e) -> playlist.clear());
+        // Move the playback to given time
+        goToItem = new JMenuItem("Go to");
+        goToItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, ActionEvent.CTRL_MASK));
+        goToItem.addActionListener((e) -> {
+            if (ar == null) {
+                return;
+            }
+            String time = JOptionPane.showInputDialog(jf, "Time (hh:mm:ss or mm:ss):", "Go to", JOptionPane.QUESTION_MESSAGE);
+            if (time == null) {
+                return;
+            }
+            try {
+                double seconds = 0;
+                for (String part : time.trim().split(":")) {
+                    seconds = seconds * 60 + Double.parseDouble(part);
+                }
+                if (ar != null) {
+                    ar.seek(seconds);
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(jf, "Wrong time format: "+time, "Go to", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        goToItem.setEnabled(false);
         // Open or move to front Tag editor window
         tagItem = new JMenuItem("Tag info");
         tagItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_I, ActionEvent.CTRL_MASK));
@@ -166,13 +252,92 @@ public class FPlayer {
         tagItem.setEnabled(false);
         audioMenu.add(startItem);
         audioMenu.add(stopItem);
+        audioMenu.add(goToItem);
+        audioMenu.addSeparator();
+        audioMenu.add(queueItem);
+        audioMenu.add(nextItem);
+        audioMenu.add(clearItem);
+        audioMenu.addSeparator();
         audioMenu.add(tagItem);
+        
+        // Menu tab for the look of the visualization
+        JMenu viewMenu = new JMenu("View");
+        menuBar.add(viewMenu);
+        // Time-frequency waterfall instead of the towers
+        JCheckBoxMenuItem spectrogramItem = new JCheckBoxMenuItem("Spectrogram");
+        spectrogramItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, ActionEvent.CTRL_MASK));
+        spectrogramItem.addActionListener((e) -> anim.setSpectrogram(spectrogramItem.isSelected()));
+        viewMenu.add(spectrogramItem);
         jf.setJMenuBar(menuBar);
         
         anim = new Animator(jf.getBackground());
         c.add(anim);
         
+        // Status line with the output latency, which adapts to the underruns
+        statusLabel = new JLabel(" ");
+        c.add(statusLabel, BorderLayout.SOUTH);
+        new Timer(DEFAULT_STATUS_PERIOD, (e) -> updateStatus()).start();
+        
+        // File given on the command line is being opened while the window is shown
+        if (audioFile != null) {
+            tagItem.setEnabled(true);
+            startItem.setEnabled(true);
+            play();
+        }
         jf.setVisible(true);
+        StartupTimeline.mark(StartupTimeline.FRAME_SHOWN);
+    }
+    
+    /**
+     * Show the current and the target latency of the playback.
+     */
+    private void updateStatus() {
+        if (ar == null || !ar.isAlive()) {
+            statusLabel.setText(" ");
+            return;
+        }
+        statusLabel.setText(String.format(" Latency %.0f ms (target %.0f ms), underruns %d",
+                ar.getLatencyMillis(), ar.getTargetLatencyMillis(), ar.getUnderruns()));
+    }
+    
+    /**
+     * Start playing the opened file, the queued files follow.
+     */
+    private void play() {
+        terminateFileInput();
+        terminateMicrophoneInput();
+        
+        ar = new AudioReader(anim, audioFile, playlist);
+        // Played file changes when the queued files follow
+        ar.setTrackListener((file) -> SwingUtilities.invokeLater(() -> {
+            audioFile = file;
+            jf.setTitle(PROGNAME+" - "+file.getName());
+        }));
+        ar.start();
+        
+        stopItem.setEnabled(true);
+        goToItem.setEnabled(true);
+        nextItem.setEnabled(true);
+    }
+    
+    /**
+     * Return dialog for choosing the audio files. The dialog is slow to create,
+     * it is therefore created when it is needed the first time and then reused.
+     * 
+     * @param multiSelection whether more files can be chosen at once
+     * @return file chooser in the last used directory
+     */
+    private JFileChooser createChooser(boolean multiSelection) {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+            fileChooser.setAcceptAllFileFilterUsed(false);
+            fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("Audio files", "wav", "mp3", "ogg"));
+            fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        }
+        fileChooser.setCurrentDirectory(new File(lastDir));
+        fileChooser.setSelectedFiles(null);
+        fileChooser.setMultiSelectionEnabled(multiSelection);
+        return fileChooser;
     }
     
     /**
@@ -206,11 +371,60 @@ public class FPlayer {
     }
 
     /**
+     * Load the slow parts of the libraries in the background, while the window
+     * is being built, so that they are ready when they are needed the first time.
+     */
+    private static void warmUp() {
+        Thread warmer = new Thread(() -> {
+            try {
+                // Service providers of the Java Sound API (MP3SPI, Tritonus) are looked up on the first use
+                AudioSystem.getAudioFileTypes();
+                AudioSystem.getMixerInfo();
+                // Plan and window of the default analysis
+                RealFftPlan.forSize(SoundReader.DEFAULT_BUFFER_LENGTH);
+                SoundReader.getWindow(SoundReader.DEFAULT_WINDOW_TYPE, SoundReader.DEFAULT_BUFFER_LENGTH);
+                // The file chooser asks the file system for its roots and icons
+                FileSystemView.getFileSystemView().getRoots();
+                // Tag editing library
+                AudioFileIO.getDefaultAudioFileIO();
+                // Management beans are slow to start, they are not needed right away
+                Metrics.register();
+            } catch (RuntimeException | LinkageError ex) {
+                System.err.println("FPlayer: warm-up failed: "+ex);
+            }
+        }, "FPlayer warm-up");
+        warmer.setDaemon(true);
+        warmer.setPriority(Thread.MIN_PRIORITY);
+        warmer.start();
+    }
+
+    /**
+     * Start the player, or the headless analysis if the first argument
+     * is --analyze (see {@link Analyzer}) or --batch (see {@link BatchAnalyzer}).
+     * Files given as arguments are played right away, --timeline prints
+     * the times of the start (see {@link StartupTimeline}).
+     * 
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        StartupTimeline.start();
+        if (args.length > 0 && args[0].equals("--analyze")) {
+            System.exit(Analyzer.run(args));
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchAnalyzer.run(args));
+        }
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--timeline")) {
+                StartupTimeline.setEnabled(true);
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        warmUp();
         SwingUtilities.invokeLater(() -> {
-            FPlayer fpl = new FPlayer();
+            FPlayer fpl = new FPlayer(files);
         });
     }
 
@@ -0,0 +1,424 @@
+
+package com.kappa.fplayer.analysis;
+
+import com.kappa.fplayer.fft.Stft;
+import com.kappa.fplayer.graphics.Animator;
+import com.kappa.fplayer.sound.AudioSource;
+import com.kappa.fplayer.sound.Band;
+import com.kappa.fplayer.sound.BandMapper;
+import com.kappa.fplayer.sound.MappedWavSource;
+import com.kappa.fplayer.sound.PcmDecoder;
+import com.kappa.fplayer.sound.SoundReader;
+import com.kappa.fplayer.sound.SoundReader.WindowType;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Analysis of a whole audio file without any audio line or window.
+ * The same stages as during the playback are used -- decoding, short-time
+ * Fourier transform and reduction into the bands shown by the Animator --
+ * but nothing waits for the speakers, so the file is analysed as fast
+ * as the CPU allows.
+ *
+ * <p>Command line usage: <code>FPlayer --analyze in.mp3 --out spectra.bin
+ * [--buffer N] [--hop N] [--window type] [--reduction mode]</code>,
+ * the result is stored as a {@link SpectrumFile}.
+ *
+ * @author Vojtech Vasek
+ */
+public class Analyzer {
+
+    /**
+     * Number of frames decoded at once.
+     */
+    public static final int DEFAULT_CHUNK_FRAMES = 4096;
+
+    /**
+     * Receiver of the analysed band levels.
+     */
+    public interface Listener {
+
+        /**
+         * Called once before the first levels, when the audio format is known.
+         *
+         * @param sampleRate sample rate of the audio
+         * @param bands analysed frequency bands
+         * @throws IOException
+         */
+        void prepared(float sampleRate, Band[] bands) throws IOException;
+
+        /**
+         * Called for every 'hop' samples with levels of the last 'bufferLength' samples.
+         * Array is reused for the next frame, listener must not keep it.
+         *
+         * @param levels levels in dB, one for every band
+         * @throws IOException
+         */
+        void bandsReady(double[] levels) throws IOException;
+    }
+
+    /**
+     * Statistics of one analysis.
+     */
+    public static class Result {
+
+        public final long   frames;         // Number of analysed samples per channel
+        public final long   spectra;        // Number of counted spectra
+        public final double audioSeconds;   // Length of the analysed audio
+        public final long   nanos;          // Time spent by the analysis
+
+        /**
+         * Create statistics of an analysis.
+         *
+         * @param frames number of analysed samples per channel
+         * @param spectra number of counted spectra
+         * @param sampleRate sample rate of the audio
+         * @param nanos time spent by the analysis
+         */
+        public Result(long frames, long spectra, float sampleRate, long nanos) {
+            this.frames = frames;
+            this.spectra = spectra;
+            this.audioSeconds = frames / (double)sampleRate;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Return how many times faster than the playback the analysis was.
+         *
+         * @return length of the audio divided by the time of the analysis
+         */
+        public double realtimeFactor() {
+            return nanos == 0 ? Double.POSITIVE_INFINITY : audioSeconds / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f s of audio, %d spectra in %.3f s (%.1fx realtime)",
+                    audioSeconds, spectra, nanos / 1e9, realtimeFactor());
+        }
+    }
+
+    private int                 bufferLength;
+    private int                 hop;        // 0 until it is set, a quarter of the buffer length is used then
+    private WindowType          windowType;
+    private BandMapper.Mode     reduction;
+    private int                 octaveDenum;
+
+    /**
+     * Prepare analyzer with the same settings as the playback uses by default.
+     */
+    public Analyzer() {
+        bufferLength = SoundReader.DEFAULT_BUFFER_LENGTH;
+        windowType = SoundReader.DEFAULT_WINDOW_TYPE;
+        reduction = BandMapper.Mode.peak;
+        octaveDenum = Animator.DEFAULT_OCTAVE_DENUM;
+    }
+
+    /**
+     * Set number of samples analysed at once. Unless the hop is set,
+     * a quarter of it is used as the hop.
+     *
+     * @param bufferLength length of the transform, any positive value
+     */
+    public void setBufferLength(int bufferLength) {
+        if (bufferLength < 1) {
+            throw new IllegalArgumentException("Analyzer: buffer length must be positive, got "+bufferLength);
+        }
+        this.bufferLength = bufferLength;
+    }
+
+    /**
+     * Return number of samples analysed at once.
+     *
+     * @return length of the transform
+     */
+    public int getBufferLength() {
+        return bufferLength;
+    }
+
+    /**
+     * Set number of samples between two consecutive frames.
+     * It is checked against the buffer length by {@link #checkSettings()},
+     * so both can be set in any order.
+     *
+     * @param hop number of samples from 1 to buffer length
+     */
+    public void setHop(int hop) {
+        if (hop < 1) {
+            throw new IllegalArgumentException("Analyzer: hop must be positive, got "+hop);
+        }
+        this.hop = hop;
+    }
+
+    /**
+     * Return number of samples between two consecutive frames.
+     *
+     * @return hop size
+     */
+    public int getHop() {
+        return hop > 0 ? hop : Math.max(1, bufferLength / SoundReader.DEFAULT_HOP_DIVISOR);
+    }
+
+    /**
+     * Check, that the settings fit together.
+     *
+     * @throws IllegalArgumentException if the hop is longer than the buffer
+     */
+    public void checkSettings() {
+        if (getHop() > bufferLength) {
+            throw new IllegalArgumentException("Analyzer: hop must be from 1 to "+bufferLength+", got "+getHop());
+        }
+    }
+
+    /**
+     * Set type of the window function.
+     *
+     * @param windowType type of the window function
+     */
+    public void setWindowType(WindowType windowType) {
+        this.windowType = windowType;
+    }
+
+    /**
+     * Return type of the window function.
+     *
+     * @return type of the window function
+     */
+    public WindowType getWindowType() {
+        return windowType;
+    }
+
+    /**
+     * Set how the bins of one band are reduced into one value.
+     *
+     * @param reduction reduction mode
+     */
+    public void setReduction(BandMapper.Mode reduction) {
+        this.reduction = reduction;
+    }
+
+    /**
+     * Return how the bins of one band are reduced into one value.
+     *
+     * @return reduction mode
+     */
+    public BandMapper.Mode getReduction() {
+        return reduction;
+    }
+
+    /**
+     * Analyse given audio file and store the result into a spectrum file.
+     * The spectrum file is deleted, when the analysis fails.
+     *
+     * @param in audio file
+     * @param out where the spectra will be stored
+     * @return statistics of the analysis
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public Result analyze(File in, File out) throws IOException, UnsupportedAudioFileException {
+        SpectrumFile.Writer[] writer = new SpectrumFile.Writer[1];
+        boolean done = false;
+        try {
+            Result result = analyze(in, new Listener() {
+                @Override
+                public void prepared(float sampleRate, Band[] bands) throws IOException {
+                    writer[0] = SpectrumFile.create(out, sampleRate, bufferLength, getHop(),
+                            windowType.name(), reduction.name(), bands);
+                }
+
+                @Override
+                public void bandsReady(double[] levels) throws IOException {
+                    writer[0].writeFrame(levels);
+                }
+            });
+            writer[0].close();
+            done = true;
+            return result;
+        } finally {
+            if (!done) {
+                if (writer[0] != null) {
+                    try {
+                        writer[0].close();
+                    } catch (IOException ex) {
+                        // The file is deleted anyway
+                    }
+                }
+                out.delete();
+            }
+        }
+    }
+
+    /**
+     * Analyse given audio file and pass the band levels to the listener.
+     *
+     * @param in audio file
+     * @param listener receiver of the band levels
+     * @return statistics of the analysis
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public Result analyze(File in, Listener listener) throws IOException, UnsupportedAudioFileException {
+        checkSettings();
+        long start = System.nanoTime();
+        try (AudioSource source = AudioSource.openSequential(in)) {
+            AudioFormat format = source.getFormat();
+            float sampleRate = format.getSampleRate();
+            Band[] bands = Band.countISOBands(octaveDenum, Animator.DEFAULT_OCTAVE_BASE, sampleRate);
+            BandMapper mapper = new BandMapper(bands, bufferLength, sampleRate);
+            double[] levels = new double[mapper.getBandCount()];
+            long[] spectra = new long[1];
+            listener.prepared(sampleRate, bands);
+
+            Stft stft = new Stft(bufferLength, getHop(), SoundReader.getWindow(windowType, bufferLength), (re, im) -> {
+                mapper.reduce(re, im, reduction, levels);
+                spectra[0]++;
+                try {
+                    listener.bandsReady(levels);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            stft.setWatchedBins(mapper.getUsedBins(), SoundReader.getCosineTerms(windowType));
+
+            long frames;
+            try {
+                frames = decode(source, PcmDecoder.forFormat(format), stft);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            return new Result(frames, spectra[0], sampleRate, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decode the whole source and pass the samples to the transform.
+     * Mapped files are decoded directly from the mapped memory.
+     *
+     * @param source source of the audio data
+     * @param decoder decoder of the source format
+     * @param stft transform receiving the samples
+     * @return number of decoded frames
+     * @throws IOException if the source can't be read or decoded to its end
+     */
+    private long decode(AudioSource source, PcmDecoder decoder, Stft stft) throws IOException {
+        int frameSize = decoder.getFrameSize();
+        double[] samples = new double[DEFAULT_CHUNK_FRAMES];
+        long frames = 0;
+
+        if (source instanceof MappedWavSource) {
+            MappedWavSource mapped = (MappedWavSource)source;
+            int chunk = Math.min(DEFAULT_CHUNK_FRAMES, MappedWavSource.MAX_WINDOW / frameSize);
+            long total = mapped.getFrameLength();
+            while (frames < total) {
+                int count = (int)Math.min(chunk, total - frames);
+                ByteBuffer view = mapped.window(frames, count);
+                decoder.decode(view, view.position(), count, samples);
+                stft.push(samples, 0, count);
+                frames += count;
+            }
+            return frames;
+        }
+
+        byte[] data = new byte[DEFAULT_CHUNK_FRAMES * frameSize];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (true) {
+            int read;
+            try {
+                read = source.read(data, 0, data.length);
+            } catch (IndexOutOfBoundsException ex) {
+                // One of the known MP3SPI1.9.5 bugs, see AudioReader, the rest is lost
+                throw new IOException("Analyzer: decoding ended early after "+frames+" frames", ex);
+            }
+            if (read <= 0) {
+                break;
+            }
+            int count = read / frameSize;
+            decoder.decode(buffer, 0, count, samples);
+            stft.push(samples, 0, count);
+            frames += count;
+        }
+        return frames;
+    }
+
+    /**
+     * Apply one analysis option from the command line:
+     * --buffer N, --hop N, --window type or --reduction mode.
+     *
+     * @param args command line arguments
+     * @param i index of the option
+     * @return index of the last argument used by the option, -1 if it is not an analysis option
+     * @throws IllegalArgumentException if the value is wrong
+     * @throws ArrayIndexOutOfBoundsException if the value is missing
+     */
+    public int parseOption(String[] args, int i) {
+        switch (args[i]) {
+            case "--buffer":
+                setBufferLength(Integer.parseInt(args[++i]));
+                return i;
+            case "--hop":
+                setHop(Integer.parseInt(args[++i]));
+                return i;
+            case "--window":
+                setWindowType(WindowType.valueOf(args[++i]));
+                return i;
+            case "--reduction":
+                setReduction(BandMapper.Mode.valueOf(args[++i]));
+                return i;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Run the analysis from the command line arguments and print the result.
+     *
+     * @param args arguments starting with --analyze
+     * @return exit code of the program, 0 on success
+     */
+    public static int run(String[] args) {
+        Analyzer analyzer = new Analyzer();
+        File in = null, out = null;
+        try {
+            for (int i=0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--analyze":
+                        in = new File(args[++i]);
+                        break;
+                    case "--out":
+                        out = new File(args[++i]);
+                        break;
+                    default:
+                        int last = analyzer.parseOption(args, i);
+                        if (last < 0) {
+                            throw new IllegalArgumentException("unknown argument "+args[i]);
+                        }
+                        i = last;
+                }
+            }
+            analyzer.checkSettings();
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("Analyzer: "+(ex instanceof ArrayIndexOutOfBoundsException ? "missing value" : ex.getMessage()));
+            in = null;
+        }
+        if (in == null || out == null) {
+            System.err.println("Usage: FPlayer --analyze <audio file> --out <spectrum file>"
+                    + " [--buffer N] [--hop N] [--window type] [--reduction peak|rms|average]");
+            return 2;
+        }
+
+        try {
+            Result result = analyzer.analyze(in, out);
+            System.out.println(in+": "+result);
+            return 0;
+        } catch (IOException | UnsupportedAudioFileException ex) {
+            System.err.println("Analyzer: can't analyse "+in+": "+ex);
+            return 1;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+
+package com.kappa.fplayer.analysis;
+
+import com.kappa.fplayer.sound.Band;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Analysis of all audio files in a directory tree, several files at once.
+ * Files are analysed by the {@link Analyzer} on a work-stealing pool with one
+ * worker per core. FFT plans and window tables are cached globally, so all
+ * workers share them.
+ *
+ * <p>For every file, a summary is written into the output directory (under
+ * the same relative path with .csv appended). It has one row per band, with
+ * the band bounds, the mean energy in dB and the peak level in dB. The summary is
+ * written into a temporary file first and then renamed, so only complete
+ * summaries exist. An interrupted run can therefore be started again and it
+ * skips the files whose summary is newer than the file itself.
+ *
+ * <p>Command line usage: <code>FPlayer --batch dir --out outdir [--threads N]
+ * [--buffer N] [--hop N] [--window type] [--reduction mode]</code>.
+ *
+ * @author Vojtech Vasek
+ */
+public class BatchAnalyzer {
+
+    /**
+     * Extensions of the analysed files.
+     */
+    public static final String[] EXTENSIONS = {".wav", ".mp3", ".ogg", ".aiff", ".aif", ".au"};
+
+    private final Analyzer      analyzer;
+    private final int           threads;
+
+    /**
+     * Prepare batch analysis.
+     *
+     * @param analyzer analyzer with the settings, shared by all workers
+     * @param threads number of workers
+     */
+    public BatchAnalyzer(Analyzer analyzer, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("BatchAnalyzer: number of threads must be positive, got "+threads);
+        }
+        this.analyzer = analyzer;
+        this.threads = threads;
+    }
+
+    /**
+     * Analyse all audio files under given directory, skip the already summarized ones.
+     * Progress and timing of every file is printed to the standard output.
+     *
+     * @param inDir directory with the audio files
+     * @param outDir directory for the summaries
+     * @return number of files, which could not be analysed
+     * @throws IOException if the directories can not be read
+     */
+    public int analyze(File inDir, File outDir) throws IOException {
+        Path root = inDir.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(p -> Files.isRegularFile(p) && isAudio(p)).sorted().collect(Collectors.toList());
+        }
+
+        // Files summarized by an earlier run are not analysed again,
+        // they are counted as done from the start
+        List<Callable<Analyzer.Result>> tasks = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger(files.size());
+        AtomicInteger failed = new AtomicInteger();
+        int total = files.size();
+        for (Path file : files) {
+            Path summary = outDir.toPath().resolve(root.relativize(file).toString() + ".csv");
+            if (Files.exists(summary)
+                    && Files.getLastModifiedTime(summary).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                continue;
+            }
+            done.decrementAndGet();
+            tasks.add(() -> {
+                Analyzer.Result result = null;
+                try {
+                    result = summarize(file.toFile(), summary);
+                    System.out.println(String.format("[%d/%d] %s: %s",
+                            done.incrementAndGet(), total, root.relativize(file), result));
+                } catch (IOException | UnsupportedAudioFileException | RuntimeException ex) {
+                    failed.incrementAndGet();
+                    System.err.println(String.format("[%d/%d] %s: can't analyse: %s",
+                            done.incrementAndGet(), total, root.relativize(file), ex));
+                }
+                return result;
+            });
+        }
+        System.out.println(String.format("BatchAnalyzer: %d files, %d already summarized, %d workers",
+                total, total - tasks.size(), threads));
+
+        long start = System.nanoTime();
+        double audioSeconds = 0;
+        long cpuNanos = 0;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (Future<Analyzer.Result> future : pool.invokeAll(tasks)) {
+                Analyzer.Result result = future.get();
+                if (result != null) {
+                    audioSeconds += result.audioSeconds;
+                    cpuNanos += result.nanos;
+                }
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("BatchAnalyzer: interrupted: "+ex);
+        } finally {
+            pool.shutdown();
+        }
+        double wall = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "BatchAnalyzer: %.1f s of audio in %.1f s, %.1fx realtime (%.1fx per worker), %d failed",
+                audioSeconds, wall, wall == 0 ? 0 : audioSeconds / wall,
+                cpuNanos == 0 ? 0 : audioSeconds / (cpuNanos / 1e9), failed.get()));
+        return failed.get();
+    }
+
+    /**
+     * Return whether given file has one of the audio extensions.
+     *
+     * @param file path to the file
+     * @return true for audio files
+     */
+    private static boolean isAudio(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String ext : EXTENSIONS) {
+            if (name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Analyse one file and write its summary.
+     *
+     * @param in audio file
+     * @param summary where the summary will be written
+     * @return statistics of the analysis
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    private Analyzer.Result summarize(File in, Path summary) throws IOException, UnsupportedAudioFileException {
+        Band[][] bands = new Band[1][];
+        double[][] energy = new double[1][];   // Sum of the powers of every band
+        double[][] peak = new double[1][];     // The highest level of every band
+        Analyzer.Result result = analyzer.analyze(in, new Analyzer.Listener() {
+            @Override
+            public void prepared(float sampleRate, Band[] b) {
+                bands[0] = b;
+                energy[0] = new double[b.length];
+                peak[0] = new double[b.length];
+                Arrays.fill(peak[0], Double.NEGATIVE_INFINITY);
+            }
+
+            @Override
+            public void bandsReady(double[] levels) {
+                for (int i=0; i < levels.length; i++) {
+                    energy[0][i] += Math.pow(10, levels[i] / 10);
+                    if (levels[i] > peak[0][i]) {
+                        peak[0][i] = levels[i];
+                    }
+                }
+            }
+        });
+
+        Files.createDirectories(summary.getParent());
+        Path tmp = summary.resolveSibling(summary.getFileName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            out.println("# "+in.getName()+", "+result);
+            out.println("band_start_hz,band_end_hz,label,mean_db,peak_db");
+            for (int i=0; i < bands[0].length; i++) {
+                double mean = 10 * Math.log10(energy[0][i] / Math.max(1, result.spectra));
+                out.println(String.format(Locale.ROOT, "%d,%d,%s,%.2f,%.2f",
+                        bands[0][i].frequencyStart, bands[0][i].frequencyEnd, bands[0][i].label, mean, peak[0][i]));
+            }
+            if (out.checkError()) {
+                throw new IOException("BatchAnalyzer: can't write "+tmp);
+            }
+        }
+        try {
+            Files.move(tmp, summary, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, summary, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return result;
+    }
+
+    /**
+     * Run the batch analysis from the command line arguments.
+     *
+     * @param args arguments starting with --batch
+     * @return exit code of the program, 0 on success
+     */
+    public static int run(String[] args) {
+        Analyzer analyzer = new Analyzer();
+        File in = null, out = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i=0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--batch":
+                        in = new File(args[++i]);
+                        break;
+                    case "--out":
+                        out = new File(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        int last = analyzer.parseOption(args, i);
+                        if (last < 0) {
+                            throw new IllegalArgumentException("unknown argument "+args[i]);
+                        }
+                        i = last;
+                }
+            }
+            analyzer.checkSettings();
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("BatchAnalyzer: "+(ex instanceof ArrayIndexOutOfBoundsException ? "missing value" : ex.getMessage()));
+            in = null;
+        }
+        if (in == null || out == null || !in.isDirectory()) {
+            System.err.println("Usage: FPlayer --batch <directory> --out <directory> [--threads N]"
+                    + " [--buffer N] [--hop N] [--window type] [--reduction peak|rms|average]");
+            return 2;
+        }
+
+        try {
+            return new BatchAnalyzer(analyzer, threads).analyze(in, out) == 0 ? 0 : 1;
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("BatchAnalyzer: "+ex);
+            return 1;
+        }
+    }
+
+}
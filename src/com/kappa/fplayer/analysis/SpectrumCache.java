@@ -0,0 +1,228 @@
+
+package com.kappa.fplayer.analysis;
+
+import com.kappa.fplayer.sound.Mp3FrameIndex;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Directory of {@link SpectrumFile}s of already played tracks.
+ * Every entry is keyed by a hash of the content of the audio file together with
+ * the analysis settings, so a renamed or copied file is still found, while
+ * a changed file or different settings are not mixed with the old spectra.
+ * To keep the hashing cheap for big files, only the length of the file and
+ * three blocks from its beginning, middle and end are hashed.
+ *
+ * <p>Size of the directory is bounded, the least recently used entries are
+ * deleted first. Last use is stored as the modification time of the entry.
+ * The bound is set by the system property <code>fplayer.spectrumCache.mb</code>
+ * ({@link #DEFAULT_MAX_MB} by default), 0 disables the cache.
+ *
+ * @author Vojtech Vasek
+ */
+public class SpectrumCache {
+
+    /**
+     * Default maximal size of the cache in MB.
+     */
+    public static final long    DEFAULT_MAX_MB = 256;
+    /**
+     * Default directory of the cache.
+     */
+    public static final File    DEFAULT_DIR = new File(Mp3FrameIndex.CACHE_DIR, "spectra");
+
+    private static final int    HASH_BLOCK = 1 << 16;
+    private static final String SUFFIX = ".fpsf";
+
+    private static SpectrumCache defaultCache;
+
+    private final File              dir;
+    private final long              maxBytes;
+    private final ExecutorService   builder;
+    private final Set<String>       building = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create cache in given directory.
+     *
+     * @param dir directory of the cache, created when needed
+     * @param maxBytes maximal size of all entries, 0 disables the cache
+     */
+    public SpectrumCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        // Spectra are built one by one in the background, playback must not be disturbed
+        builder = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "SpectrumCache builder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Return the cache shared by the whole program.
+     *
+     * @return cache in the default directory
+     */
+    public static synchronized SpectrumCache getDefault() {
+        if (defaultCache == null) {
+            long mb = Long.getLong("fplayer.spectrumCache.mb", DEFAULT_MAX_MB);
+            defaultCache = new SpectrumCache(DEFAULT_DIR, Math.max(0, mb) << 20);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Return whether the cache stores anything.
+     *
+     * @return false if the size of the cache is 0
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Count the key of given audio file analysed with given settings.
+     *
+     * @param audio audio file
+     * @param analyzer analysis settings
+     * @return key of the cache entry
+     * @throws IOException if the file can not be read
+     */
+    public static String key(File audio, Analyzer analyzer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(audio, "r")) {
+            long length = raf.length();
+            byte[] block = new byte[HASH_BLOCK];
+            for (long pos : new long[] {0, length/2 - HASH_BLOCK/2, length - HASH_BLOCK}) {
+                raf.seek(Math.max(0, pos));
+                int read = raf.read(block, 0, (int)Math.min(block.length, length));
+                if (read > 0) {
+                    digest.update(block, 0, read);
+                }
+            }
+            digest.update(Long.toString(length).getBytes());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        sb.append('-').append(analyzer.getBufferLength()).append('-').append(analyzer.getHop())
+                .append('-').append(analyzer.getWindowType()).append('-').append(analyzer.getReduction());
+        return sb.toString();
+    }
+
+    /**
+     * Return cached spectra with given key and mark them as used.
+     *
+     * @param key key of the entry, see {@link #key(File, Analyzer)}
+     * @return mapped spectra, null if they are not cached
+     */
+    public SpectrumFile get(String key) {
+        File entry = new File(dir, key + SUFFIX);
+        if (!isEnabled() || !entry.isFile()) {
+            return null;
+        }
+        try {
+            SpectrumFile spectra = new SpectrumFile(entry);
+            entry.setLastModified(System.currentTimeMillis());
+            return spectra;
+        } catch (IOException ex) {
+            System.err.println("SpectrumCache: damaged entry "+entry+": "+ex);
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Analyse given file in the background and store the result under given key.
+     * Nothing is done if the entry exists or is just being built.
+     *
+     * @param key key of the entry, see {@link #key(File, Analyzer)}
+     * @param audio audio file
+     * @param analyzer analysis settings, must not be changed afterwards
+     */
+    public void buildAsync(String key, File audio, Analyzer analyzer) {
+        if (!isEnabled() || new File(dir, key + SUFFIX).isFile() || !building.add(key)) {
+            return;
+        }
+        builder.execute(() -> {
+            try {
+                build(key, audio, analyzer);
+            } catch (IOException | UnsupportedAudioFileException ex) {
+                System.err.println("SpectrumCache: can't analyse "+audio+": "+ex);
+            } finally {
+                building.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Analyse given file and store the result under given key.
+     *
+     * @param key key of the entry
+     * @param audio audio file
+     * @param analyzer analysis settings
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    private void build(String key, File audio, Analyzer analyzer) throws IOException, UnsupportedAudioFileException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("SpectrumCache: can't create "+dir);
+        }
+        File entry = new File(dir, key + SUFFIX);
+        File tmp = new File(dir, key + ".tmp");
+        try {
+            analyzer.analyze(audio, tmp);
+            try {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+        evict();
+    }
+
+    /**
+     * Delete the least recently used entries, until the cache fits into its size.
+     */
+    public synchronized void evict() {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i=0; i < entries.length && size > maxBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+}
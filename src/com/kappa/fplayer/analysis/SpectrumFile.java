@@ -0,0 +1,275 @@
+
+package com.kappa.fplayer.analysis;
+
+import com.kappa.fplayer.sound.Band;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File with the band levels of a whole track, as written by the {@link Analyzer}.
+ * The header describes the analysis (sample rate, buffer length, hop, window
+ * function, reduction mode and frequency bounds of the bands), the header is
+ * followed by a matrix of 32-bit floats, one row of band levels in dB
+ * for every analysed frame. Row 'i' belongs to the audio ending with
+ * the sample (i+1)*hop. All values are big endian.
+ *
+ * <p>Data are mapped into memory when the file is read, rows are therefore
+ * read directly from the file without loading it whole.
+ *
+ * @author Vojtech Vasek
+ */
+public class SpectrumFile {
+
+    /**
+     * First four bytes of every spectrum file, "FPSF".
+     */
+    public static final int     MAGIC = 0x46505346;
+    private static final int    VERSION = 1;
+
+    private final float         sampleRate;
+    private final int           bufferLength;
+    private final int           hop;
+    private final String        windowType;
+    private final String        reduction;
+    private final Band[]        bands;
+    private final long          frameCount;
+    private final ByteBuffer    data;       // Mapped band levels
+
+    /**
+     * Read the header of given file and map its data.
+     *
+     * @param file spectrum file
+     * @throws IOException if the file can not be read or has a wrong format
+     */
+    public SpectrumFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("SpectrumFile: "+file+" is not a spectrum file");
+            }
+            sampleRate = raf.readFloat();
+            bufferLength = raf.readInt();
+            hop = raf.readInt();
+            windowType = raf.readUTF();
+            reduction = raf.readUTF();
+            bands = new Band[raf.readInt()];
+            for (int b=0; b < bands.length; b++) {
+                int start = raf.readInt();
+                int end = raf.readInt();
+                bands[b] = new Band(start, end);
+            }
+            long count = raf.readLong();
+            long dataStart = raf.getFilePointer();
+            // Frame count is written at the end, take the data actually present if it is missing
+            long present = (channel.size() - dataStart) / (4L * Math.max(1, bands.length));
+            frameCount = count < 0 ? present : Math.min(count, present);
+            long size = frameCount * bands.length * 4;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("SpectrumFile: "+file+" is too big");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, dataStart, size);
+        }
+    }
+
+    /**
+     * Create new spectrum file and write its header.
+     *
+     * @param file where the spectra will be stored
+     * @param sampleRate sample rate of the analysed audio
+     * @param bufferLength length of the transform
+     * @param hop number of samples between two frames
+     * @param windowType name of the window function
+     * @param reduction name of the reduction of bins into bands
+     * @param bands frequency bands
+     * @return writer of the band levels
+     * @throws IOException
+     */
+    public static Writer create(File file, float sampleRate, int bufferLength, int hop,
+            String windowType, String reduction, Band[] bands) throws IOException {
+        return new Writer(file, sampleRate, bufferLength, hop, windowType, reduction, bands);
+    }
+
+    /**
+     * Return sample rate of the analysed audio.
+     *
+     * @return number of samples in one second
+     */
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Return length of the transform.
+     *
+     * @return number of samples in one frame
+     */
+    public int getBufferLength() {
+        return bufferLength;
+    }
+
+    /**
+     * Return number of samples between two frames.
+     *
+     * @return hop size
+     */
+    public int getHop() {
+        return hop;
+    }
+
+    /**
+     * Return name of the used window function.
+     *
+     * @return window type
+     */
+    public String getWindowType() {
+        return windowType;
+    }
+
+    /**
+     * Return name of the reduction of bins into bands.
+     *
+     * @return reduction mode
+     */
+    public String getReduction() {
+        return reduction;
+    }
+
+    /**
+     * Return the analysed frequency bands.
+     *
+     * @return bands, one column of the matrix for every band
+     */
+    public Band[] getBands() {
+        return bands.clone();
+    }
+
+    /**
+     * Return number of stored frames.
+     *
+     * @return number of rows of the matrix
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Return index of the frame, which ends at given time of the audio.
+     *
+     * @param seconds time from the beginning of the audio
+     * @return index of the frame, from 0 to frame count - 1
+     */
+    public long frameAt(double seconds) {
+        long frame = (long)(seconds * sampleRate / hop) - 1;
+        return Math.max(0, Math.min(frame, frameCount - 1));
+    }
+
+    /**
+     * Read band levels of given frame.
+     *
+     * @param frame index of the frame
+     * @param out where the levels in dB will be stored, one for every band
+     */
+    public void readFrame(long frame, double[] out) {
+        int pos = (int)(frame * bands.length * 4);
+        for (int b=0; b < bands.length; b++, pos += 4) {
+            out[b] = data.getFloat(pos);
+        }
+    }
+
+    /**
+     * Sequential writer of a spectrum file.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileChannel   channel;
+        private final ByteBuffer    buffer;     // Rows waiting to be written
+        private final int           bandCount;
+        private final long          countPosition;
+        private long                frameCount;
+
+        /**
+         * Create the file and write its header.
+         */
+        private Writer(File file, float sampleRate, int bufferLength, int hop,
+                String windowType, String reduction, Band[] bands) throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+            bandCount = bands.length;
+            buffer = ByteBuffer.allocate(Math.max(1 << 16, 4 * bandCount));
+
+            byte[] window = windowType.getBytes(StandardCharsets.UTF_8);
+            byte[] reduce = reduction.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putFloat(sampleRate).putInt(bufferLength).putInt(hop);
+            buffer.putShort((short)window.length).put(window);
+            buffer.putShort((short)reduce.length).put(reduce);
+            buffer.putInt(bandCount);
+            for (Band band : bands) {
+                buffer.putInt(band.frequencyStart).putInt(band.frequencyEnd);
+            }
+            countPosition = buffer.position();
+            // Unknown until the file is closed
+            buffer.putLong(-1);
+        }
+
+        /**
+         * Append band levels of the next frame.
+         *
+         * @param levels levels in dB, one for every band
+         * @throws IOException
+         */
+        public void writeFrame(double[] levels) throws IOException {
+            if (buffer.remaining() < 4 * bandCount) {
+                flush();
+            }
+            for (int b=0; b < bandCount; b++) {
+                buffer.putFloat((float)levels[b]);
+            }
+            frameCount++;
+        }
+
+        /**
+         * Return number of frames written so far.
+         *
+         * @return number of rows of the matrix
+         */
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * Write the buffered rows into the file.
+         *
+         * @throws IOException
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Write the rest of the data and the number of frames, close the file.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                ByteBuffer count = ByteBuffer.allocate(8).putLong(0, frameCount);
+                channel.write(count, countPosition);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+}
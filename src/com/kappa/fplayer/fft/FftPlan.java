@@ -0,0 +1,507 @@
+package com.kappa.fplayer.fft;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed plan for the in-place Fast Fourier Transform of arbitrary length.
+ * Tables are counted only once per size, every transform then works directly
+ * on primitive arrays of real and imaginary parts.
+ *
+ * <p>Algorithm is chosen by the length N of the transformed arrays:
+ * <ul>
+ * <li>power of two -- iterative radix-4 (or radix-2, see {@link Kernels}) transform
+ * with bit-reversal permutation, no additional memory is needed,
+ * <li>product of 2, 3, 5 and 7 -- mixed-radix decimation in time,
+ * <li>anything else (e.g. prime lengths) -- Bluestein's algorithm, which expresses
+ * the transform as a convolution computed by power of two transforms.
+ * </ul>
+ * Last two algorithms need work arrays, these are kept per thread and allocated
+ * only on the first transform in that thread.
+ *
+ * <p>Plans are immutable, therefore one plan can be shared by any number
+ * of readers (threads), use {@link #forSize(int)} to obtain the shared instance.
+ *
+ * <p><a href="http://en.wikipedia.org/wiki/Bluestein%27s_FFT_algorithm">On Bluestein's algorithm</a>
+ *
+ * @author Vojtech Vasek
+ */
+public class FftPlan {
+
+    /**
+     * Radices, which the mixed-radix algorithm can use, in the order of preference.
+     */
+    private static final int[] RADICES = {4, 2, 3, 5, 7};
+
+    private static final ConcurrentHashMap<Integer, FftPlan> PLANS = new ConcurrentHashMap<>();
+
+    private final int       size;
+    private final double[]  cos;        // Real parts of the twiddle factors e^(-2*pi*i/N * k)
+    private final double[]  sin;        // Imaginary parts of the twiddle factors e^(-2*pi*i/N * k)
+
+    // Power of two lengths
+    private final int[]     reversed;   // Index pairs to be swapped by the bit-reversal permutation
+    private final boolean   radix4;     // Whether to use radix-4 butterflies
+
+    // Mixed-radix lengths
+    private final int[]     radices;    // Radix of every stage
+    private final int[]     spans;      // Length of the sub-transforms of every stage
+
+    // Bluestein's algorithm
+    private final FftPlan   conv;       // Power of two plan for the convolution
+    private final double[]  chirpRe;    // e^(-pi*i * k^2/N)
+    private final double[]  chirpIm;
+    private final double[]  filterRe;   // Transformed conjugated chirp
+    private final double[]  filterIm;
+
+    private final ThreadLocal<double[][]> work;
+
+    /**
+     * Prepare plan for transformation of arrays with given length.
+     *
+     * @param size length of the transformed arrays, must be positive
+     */
+    public FftPlan(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("FftPlan: size must be positive, got "+size);
+        }
+        this.size = size;
+
+        boolean powerOfTwo = Integer.bitCount(size) == 1;
+        int[] factors = powerOfTwo ? null : factorize(size);
+        boolean bluestein = !powerOfTwo && factors == null;
+
+        // Bluestein's algorithm needs only the chirp, not the twiddles for length N
+        cos = new double[bluestein ? 0 : size];
+        sin = new double[bluestein ? 0 : size];
+        for (int k=0; k < cos.length; k++) {
+            double fi = -2 * Math.PI * k / size;
+            cos[k] = Math.cos(fi);
+            sin[k] = Math.sin(fi);
+        }
+
+        if (powerOfTwo) {
+            reversed = bitReversal(size);
+        } else {
+            reversed = null;
+        }
+        radix4 = Kernels.get().radix4();
+
+        if (factors != null) {
+            radices = factors;
+            spans = new int[factors.length];
+            int span = size;
+            for (int s=0; s < factors.length; s++) {
+                span /= factors[s];
+                spans[s] = span;
+            }
+        } else {
+            radices = null;
+            spans = null;
+        }
+
+        if (bluestein) {
+            int convSize = Integer.highestOneBit(2*size - 1) << 1;
+            conv = forSize(convSize);
+            chirpRe = new double[size];
+            chirpIm = new double[size];
+            filterRe = new double[convSize];
+            filterIm = new double[convSize];
+            for (int k=0; k < size; k++) {
+                // k^2 mod 2N keeps the angle small, so it does not lose precision
+                long sq = (long)k * k % (2L * size);
+                double fi = -Math.PI * sq / size;
+                chirpRe[k] = Math.cos(fi);
+                chirpIm[k] = Math.sin(fi);
+                filterRe[k] = chirpRe[k];
+                filterIm[k] = -chirpIm[k];
+                if (k > 0) {
+                    filterRe[convSize - k] = chirpRe[k];
+                    filterIm[convSize - k] = -chirpIm[k];
+                }
+            }
+            conv.transform(filterRe, filterIm);
+        } else {
+            conv = null;
+            chirpRe = chirpIm = filterRe = filterIm = null;
+        }
+
+        work = powerOfTwo ? null : new ThreadLocal<>();
+    }
+
+    /**
+     * Return shared plan for given size, plan is created on the first request.
+     *
+     * @param size length of the transformed arrays, must be positive
+     * @return plan for given size
+     */
+    public static FftPlan forSize(int size) {
+        FftPlan plan = PLANS.get(size);
+        if (plan == null) {
+            plan = new FftPlan(size);
+            FftPlan prev = PLANS.putIfAbsent(size, plan);
+            if (prev != null) {
+                plan = prev;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Compute index pairs, which are swapped by the bit-reversal permutation.
+     *
+     * @param size power of two
+     * @return flattened array of index pairs
+     */
+    private static int[] bitReversal(int size) {
+        int bits = Integer.numberOfTrailingZeros(size);
+        int pairs = 0;
+        int[] tmp = new int[size];
+        for (int i=0; i < size; i++) {
+            int j = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            if (i < j) {
+                tmp[2*pairs] = i;
+                tmp[2*pairs + 1] = j;
+                pairs++;
+            }
+        }
+        int[] ret = new int[2*pairs];
+        System.arraycopy(tmp, 0, ret, 0, ret.length);
+        return ret;
+    }
+
+    /**
+     * Split given number into the supported radices.
+     *
+     * @param value number to be factorized
+     * @return radices, whose product is equal to 'value', null if there is
+     * other prime factor than 2, 3, 5 or 7
+     */
+    private static int[] factorize(int value) {
+        int[] tmp = new int[32];
+        int count = 0;
+        for (int radix : RADICES) {
+            while (value % radix == 0) {
+                tmp[count++] = radix;
+                value /= radix;
+            }
+        }
+        if (value != 1) {
+            return null;
+        }
+        int[] ret = new int[count];
+        System.arraycopy(tmp, 0, ret, 0, count);
+        return ret;
+    }
+
+    /**
+     * Return length of the arrays this plan transforms.
+     *
+     * @return length of the transformed arrays
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Perform FFT in place on given arrays.
+     * Both arrays must have at least the length of this plan, the result replaces
+     * the input data.
+     *
+     * @param re real parts of the input, real parts of the result afterwards
+     * @param im imaginary parts of the input, imaginary parts of the result afterwards
+     */
+    public void transform(double[] re, double[] im) {
+        if (re.length < size || im.length < size) {
+            throw new IllegalArgumentException("FftPlan: arrays are shorter than "+size);
+        }
+        if (reversed != null) {
+            permute(re, im);
+            if (radix4) {
+                radix4(re, im);
+            } else {
+                radix2(re, im);
+            }
+        } else if (radices != null) {
+            mixedRadix(re, im);
+        } else {
+            bluestein(re, im);
+        }
+    }
+
+    /**
+     * Return work arrays of this plan for the current thread.
+     *
+     * @param length minimal length of the work arrays
+     * @return two work arrays
+     */
+    private double[][] getWork(int length) {
+        double[][] w = work.get();
+        if (w == null) {
+            w = new double[][] {new double[length], new double[length]};
+            work.set(w);
+        }
+        return w;
+    }
+
+    /**
+     * Reorder the input, so that the butterflies can be done in place.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     */
+    private void permute(double[] re, double[] im) {
+        for (int p=0; p < reversed.length; p += 2) {
+            int i = reversed[p];
+            int j = reversed[p + 1];
+            double t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+        }
+    }
+
+    /**
+     * Iterative radix-2 transform of the permuted data, used for lengths of power of two.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     */
+    private void radix2(double[] re, double[] im) {
+        // Merge transforms of length 'half' into transforms of length 2*'half'
+        for (int half=1, step=size/2; half < size; half *= 2, step /= 2) {
+            for (int start=0; start < size; start += 2*half) {
+                for (int k=0, tw=0; k < half; k++, tw += step) {
+                    int i = start + k;
+                    int j = i + half;
+                    // Multiply odd part by the twiddle factor
+                    double tre = re[j]*cos[tw] - im[j]*sin[tw];
+                    double tim = re[j]*sin[tw] + im[j]*cos[tw];
+                    re[j] = re[i] - tre;
+                    im[j] = im[i] - tim;
+                    re[i] += tre;
+                    im[i] += tim;
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterative radix-4 transform of the permuted data, used for lengths of power of two.
+     * Every step merges four transforms of length 'quarter' at once, which
+     * replaces two radix-2 steps, one radix-2 step is done first for odd powers of two.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     */
+    private void radix4(double[] re, double[] im) {
+        int quarter = 1;
+        if (Integer.numberOfTrailingZeros(size) % 2 == 1) {
+            for (int i=0; i < size; i += 2) {
+                double tre = re[i + 1];
+                double tim = im[i + 1];
+                re[i + 1] = re[i] - tre;
+                im[i + 1] = im[i] - tim;
+                re[i] += tre;
+                im[i] += tim;
+            }
+            quarter = 2;
+        }
+
+        for (; quarter < size; quarter *= 4) {
+            int step = size / (4*quarter);
+            for (int start=0; start < size; start += 4*quarter) {
+                for (int k=0; k < quarter; k++) {
+                    int i0 = start + k;
+                    int i1 = i0 + quarter;
+                    int i2 = i1 + quarter;
+                    int i3 = i2 + quarter;
+                    int tw1 = k*step;
+                    int tw2 = 2*tw1;
+                    int tw3 = 3*tw1;
+                    // Twiddle factors W^2k, W^k and W^3k of the second, third and fourth part
+                    double r1 = re[i1]*cos[tw2] - im[i1]*sin[tw2];
+                    double j1 = re[i1]*sin[tw2] + im[i1]*cos[tw2];
+                    double r2 = re[i2]*cos[tw1] - im[i2]*sin[tw1];
+                    double j2 = re[i2]*sin[tw1] + im[i2]*cos[tw1];
+                    double r3 = re[i3]*cos[tw3] - im[i3]*sin[tw3];
+                    double j3 = re[i3]*sin[tw3] + im[i3]*cos[tw3];
+
+                    double sumRe = re[i0] + r1, sumIm = im[i0] + j1;
+                    double difRe = re[i0] - r1, difIm = im[i0] - j1;
+                    double sum2Re = r2 + r3, sum2Im = j2 + j3;
+                    // (r2 - r3) multiplied by -i
+                    double dif2Re = j2 - j3, dif2Im = r3 - r2;
+
+                    re[i0] = sumRe + sum2Re;
+                    im[i0] = sumIm + sum2Im;
+                    re[i1] = difRe + dif2Re;
+                    im[i1] = difIm + dif2Im;
+                    re[i2] = sumRe - sum2Re;
+                    im[i2] = sumIm - sum2Im;
+                    re[i3] = difRe - dif2Re;
+                    im[i3] = difIm - dif2Im;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mixed-radix transform, used for lengths composed from 2, 3, 5 and 7.
+     * Input is copied into the work arrays, result is written back.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     */
+    private void mixedRadix(double[] re, double[] im) {
+        // Two input copies and the butterfly scratch of the biggest radix
+        double[][] w = getWork(size + 2*RADICES[RADICES.length - 1]);
+        System.arraycopy(re, 0, w[0], 0, size);
+        System.arraycopy(im, 0, w[1], 0, size);
+        decimate(re, im, 0, w[0], w[1], 0, 1, 0, w);
+    }
+
+    /**
+     * One stage of the recursive decimation in time.
+     * Sub-sequences of the input, taken with stride 'fstride', are transformed
+     * to consecutive parts of the output, which are then combined by the butterflies.
+     *
+     * @param outRe real parts of the output
+     * @param outIm imaginary parts of the output
+     * @param out offset into the output
+     * @param inRe real parts of the input
+     * @param inIm imaginary parts of the input
+     * @param in offset into the input
+     * @param fstride distance of the input elements of this stage
+     * @param stage index of the stage
+     * @param w work arrays, whose tail serves as a butterfly scratch
+     */
+    private void decimate(double[] outRe, double[] outIm, int out, double[] inRe, double[] inIm,
+            int in, int fstride, int stage, double[][] w) {
+        int p = radices[stage];
+        int m = spans[stage];
+        if (m == 1) {
+            for (int q=0; q < p; q++) {
+                outRe[out + q] = inRe[in + q*fstride];
+                outIm[out + q] = inIm[in + q*fstride];
+            }
+        } else {
+            for (int q=0; q < p; q++) {
+                decimate(outRe, outIm, out + q*m, inRe, inIm, in + q*fstride, fstride*p, stage + 1, w);
+            }
+        }
+
+        if (p == 2) {
+            butterfly2(outRe, outIm, out, fstride, m);
+        } else {
+            butterfly(outRe, outIm, out, fstride, p, m, w[0], w[1]);
+        }
+    }
+
+    /**
+     * Radix-2 butterflies of one mixed-radix stage.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     * @param out offset of the combined sub-transforms
+     * @param fstride step in the twiddle table
+     * @param m length of the sub-transforms
+     */
+    private void butterfly2(double[] re, double[] im, int out, int fstride, int m) {
+        for (int u=0, tw=0; u < m; u++, tw += fstride) {
+            int i = out + u;
+            int j = i + m;
+            double tre = re[j]*cos[tw] - im[j]*sin[tw];
+            double tim = re[j]*sin[tw] + im[j]*cos[tw];
+            re[j] = re[i] - tre;
+            im[j] = im[i] - tim;
+            re[i] += tre;
+            im[i] += tim;
+        }
+    }
+
+    /**
+     * Generic butterflies of one mixed-radix stage, radix 'p' sub-transforms
+     * of length 'm' are combined into one transform of length p*m.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     * @param out offset of the combined sub-transforms
+     * @param fstride step in the twiddle table
+     * @param p radix
+     * @param m length of the sub-transforms
+     * @param scratchRe work array, its tail is used as a scratch
+     * @param scratchIm work array, its tail is used as a scratch
+     */
+    private void butterfly(double[] re, double[] im, int out, int fstride, int p, int m,
+            double[] scratchRe, double[] scratchIm) {
+        int s = size;   // Scratch is placed after the input copy
+        int pstep = size / p;
+        for (int u=0; u < m; u++) {
+            // Multiply u-th element of every sub-transform by its twiddle factor
+            for (int q=0; q < p; q++) {
+                int k = out + q*m + u;
+                int tw = (int)((long)fstride * q * u % size);
+                scratchRe[s + q] = re[k]*cos[tw] - im[k]*sin[tw];
+                scratchIm[s + q] = re[k]*sin[tw] + im[k]*cos[tw];
+            }
+            // Transform of length 'p' over the multiplied elements
+            for (int q2=0; q2 < p; q2++) {
+                double sumRe = scratchRe[s];
+                double sumIm = scratchIm[s];
+                for (int q=1, tw=q2; q < p; q++, tw += q2) {
+                    int t = (tw % p) * pstep;
+                    sumRe += scratchRe[s + q]*cos[t] - scratchIm[s + q]*sin[t];
+                    sumIm += scratchRe[s + q]*sin[t] + scratchIm[s + q]*cos[t];
+                }
+                re[out + q2*m + u] = sumRe;
+                im[out + q2*m + u] = sumIm;
+            }
+        }
+    }
+
+    /**
+     * Bluestein's transform, used for the remaining lengths.
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     */
+    private void bluestein(double[] re, double[] im) {
+        int n = conv.getSize();
+        double[][] w = getWork(n);
+        double[] ar = w[0];
+        double[] ai = w[1];
+
+        // Multiply the input by the chirp and pad it with zeros
+        for (int k=0; k < size; k++) {
+            ar[k] = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+            ai[k] = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+        }
+        for (int k=size; k < n; k++) {
+            ar[k] = 0;
+            ai[k] = 0;
+        }
+
+        // Convolution with the conjugated chirp, inverse transform is done
+        // as a forward transform of the conjugated data
+        conv.transform(ar, ai);
+        for (int k=0; k < n; k++) {
+            double r = ar[k]*filterRe[k] - ai[k]*filterIm[k];
+            double i = ar[k]*filterIm[k] + ai[k]*filterRe[k];
+            ar[k] = r;
+            ai[k] = -i;
+        }
+        conv.transform(ar, ai);
+
+        // Conjugate back, scale and multiply by the chirp
+        double scale = 1.0 / n;
+        for (int k=0; k < size; k++) {
+            double r = ar[k] * scale;
+            double i = -ai[k] * scale;
+            re[k] = r*chirpRe[k] - i*chirpIm[k];
+            im[k] = r*chirpIm[k] + i*chirpRe[k];
+        }
+    }
+
+}
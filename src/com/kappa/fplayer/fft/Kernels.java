@@ -0,0 +1,179 @@
+package com.kappa.fplayer.fft;
+
+/**
+ * Inner loops of the signal processing -- windowing, decibel conversion
+ * and butterflies of the FFT. Channels are averaged already while the samples
+ * are decoded, see {@link com.kappa.fplayer.sound.PcmDecoder}.
+ * Every kernel works on primitive arrays only and does not allocate.
+ *
+ * <p>Two sets of kernels are available. {@link #REFERENCE} is plain scalar code,
+ * that serves as a reference. {@link #BLOCKED} processes the data in independent
+ * blocks without data dependent branches (so that the JIT compiler can use SIMD
+ * instructions for them) and uses radix-4 butterflies for the power of two transforms.
+ * The set is chosen at runtime, blocked kernels are used unless the system
+ * property <code>fplayer.kernels</code> is set to <code>reference</code>.
+ *
+ * <p>The sets may differ in the last bits of the results, because they perform
+ * the floating point operations in a different order.
+ *
+ * @author Vojtech Vasek
+ */
+public abstract class Kernels {
+
+    /**
+     * Plain scalar kernels.
+     */
+    public static final Kernels REFERENCE = new Reference();
+
+    /**
+     * Kernels processing the data in blocks.
+     */
+    public static final Kernels BLOCKED = new Blocked();
+
+    private static final Kernels SELECTED =
+            "reference".equals(System.getProperty("fplayer.kernels")) ? REFERENCE : BLOCKED;
+
+    /**
+     * Return the kernel set chosen for this run.
+     *
+     * @return selected kernels
+     */
+    public static Kernels get() {
+        return SELECTED;
+    }
+
+    /**
+     * Multiply the data by the window coefficients, the data may be windowed in place.
+     *
+     * @param data data to be windowed
+     * @param dataOffset index of the first value of the data
+     * @param window window function coefficients
+     * @param windowOffset index of the first used coefficient
+     * @param out where the windowed data will be stored
+     * @param outOffset index of the first stored value
+     * @param length number of values to be processed
+     */
+    public abstract void applyWindow(double[] data, int dataOffset, double[] window, int windowOffset,
+            double[] out, int outOffset, int length);
+
+    /**
+     * Count decibel values of the magnitudes of given complex numbers,
+     * i.e. 20*log10(|x|).
+     *
+     * @param re real parts
+     * @param im imaginary parts
+     * @param out where the decibel values will be stored
+     * @param length number of values to be processed
+     */
+    public abstract void decibels(double[] re, double[] im, double[] out, int length);
+
+    /**
+     * Replace the values by their decibel values, i.e. factor*log10(x).
+     * The factor is 10 for powers and 20 for magnitudes.
+     *
+     * @param values values to be converted in place
+     * @param factor multiplier of the logarithm
+     * @param length number of values to be processed
+     */
+    public abstract void decibels(double[] values, double factor, int length);
+
+    /**
+     * Return whether the power of two transforms should use radix-4 butterflies.
+     *
+     * @return true for radix-4, false for radix-2 butterflies
+     */
+    public abstract boolean radix4();
+
+    /**
+     * Straightforward scalar kernels.
+     */
+    private static class Reference extends Kernels {
+
+        @Override
+        public void applyWindow(double[] data, int dataOffset, double[] window, int windowOffset,
+                double[] out, int outOffset, int length) {
+            for (int i=0; i < length; i++) {
+                out[outOffset + i] = data[dataOffset + i] * window[windowOffset + i];
+            }
+        }
+
+        @Override
+        public void decibels(double[] re, double[] im, double[] out, int length) {
+            for (int i=0; i < length; i++) {
+                out[i] = 20.0 * Math.log10(Math.sqrt(re[i]*re[i] + im[i]*im[i]));
+            }
+        }
+
+        @Override
+        public void decibels(double[] values, double factor, int length) {
+            for (int i=0; i < length; i++) {
+                values[i] = factor * Math.log10(values[i]);
+            }
+        }
+
+        @Override
+        public boolean radix4() {
+            return false;
+        }
+    }
+
+    /**
+     * Kernels processing independent blocks of four values.
+     */
+    private static class Blocked extends Kernels {
+
+        @Override
+        public void applyWindow(double[] data, int dataOffset, double[] window, int windowOffset,
+                double[] out, int outOffset, int length) {
+            int i = 0;
+            for (; i + 3 < length; i += 4) {
+                out[outOffset + i]     = data[dataOffset + i]     * window[windowOffset + i];
+                out[outOffset + i + 1] = data[dataOffset + i + 1] * window[windowOffset + i + 1];
+                out[outOffset + i + 2] = data[dataOffset + i + 2] * window[windowOffset + i + 2];
+                out[outOffset + i + 3] = data[dataOffset + i + 3] * window[windowOffset + i + 3];
+            }
+            for (; i < length; i++) {
+                out[outOffset + i] = data[dataOffset + i] * window[windowOffset + i];
+            }
+        }
+
+        @Override
+        public void decibels(double[] re, double[] im, double[] out, int length) {
+            // 20*log10(sqrt(p)) == 10*log10(p), square root is not needed
+            int i = 0;
+            for (; i + 3 < length; i += 4) {
+                double p0 = re[i]*re[i] + im[i]*im[i];
+                double p1 = re[i + 1]*re[i + 1] + im[i + 1]*im[i + 1];
+                double p2 = re[i + 2]*re[i + 2] + im[i + 2]*im[i + 2];
+                double p3 = re[i + 3]*re[i + 3] + im[i + 3]*im[i + 3];
+                out[i]     = 10.0 * Math.log10(p0);
+                out[i + 1] = 10.0 * Math.log10(p1);
+                out[i + 2] = 10.0 * Math.log10(p2);
+                out[i + 3] = 10.0 * Math.log10(p3);
+            }
+            for (; i < length; i++) {
+                out[i] = 10.0 * Math.log10(re[i]*re[i] + im[i]*im[i]);
+            }
+        }
+
+        @Override
+        public void decibels(double[] values, double factor, int length) {
+            int i = 0;
+            for (; i + 3 < length; i += 4) {
+                values[i]     = factor * Math.log10(values[i]);
+                values[i + 1] = factor * Math.log10(values[i + 1]);
+                values[i + 2] = factor * Math.log10(values[i + 2]);
+                values[i + 3] = factor * Math.log10(values[i + 3]);
+            }
+            for (; i < length; i++) {
+                values[i] = factor * Math.log10(values[i]);
+            }
+        }
+
+        @Override
+        public boolean radix4() {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.kappa.fplayer.fft;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed plan for the Fast Fourier Transform of real input data.
+ * N real samples are packed into N/2 complex numbers (even samples as real parts,
+ * odd samples as imaginary parts), transformed by complex FFT of half size
+ * and then separated into the spectrum of the original data.
+ * Spectrum of real data is symmetric, therefore only the N/2+1 non-redundant
+ * bins are returned.
+ * Odd lengths can not be packed, their samples are transformed by complex FFT
+ * of full length.
+ *
+ * <p>Plans are immutable and can be shared, use {@link #forSize(int)} to obtain
+ * the shared instance.
+ *
+ * @author Vojtech Vasek
+ */
+public class RealFftPlan {
+
+    private static final ConcurrentHashMap<Integer, RealFftPlan> PLANS = new ConcurrentHashMap<>();
+
+    private final int       size;
+    private final FftPlan   half;   // Transform of the packed samples, null for odd lengths
+    private final FftPlan   full;   // Transform of the odd lengths, null for even lengths
+    private final double[]  cos;    // Real parts of the twiddle factors e^(-2*pi*i/N * k)
+    private final double[]  sin;    // Imaginary parts of the twiddle factors e^(-2*pi*i/N * k)
+    private final ThreadLocal<double[][]> work = new ThreadLocal<>();
+
+    /**
+     * Prepare plan for transformation of real arrays with given length.
+     *
+     * @param size number of the real samples, must be positive
+     */
+    public RealFftPlan(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("RealFftPlan: size must be positive, got "+size);
+        }
+        this.size = size;
+        if (size % 2 == 0) {
+            half = FftPlan.forSize(size/2);
+            full = null;
+        } else {
+            half = null;
+            full = FftPlan.forSize(size);
+        }
+
+        cos = new double[size/4 + 1];
+        sin = new double[size/4 + 1];
+        for (int k=0; k < cos.length; k++) {
+            double fi = -2 * Math.PI * k / size;
+            cos[k] = Math.cos(fi);
+            sin[k] = Math.sin(fi);
+        }
+    }
+
+    /**
+     * Return shared plan for given size, plan is created on the first request.
+     *
+     * @param size number of the real samples, must be positive
+     * @return plan for given size
+     */
+    public static RealFftPlan forSize(int size) {
+        RealFftPlan plan = PLANS.get(size);
+        if (plan == null) {
+            plan = new RealFftPlan(size);
+            RealFftPlan prev = PLANS.putIfAbsent(size, plan);
+            if (prev != null) {
+                plan = prev;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Return number of the real samples this plan transforms.
+     *
+     * @return number of the real samples
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return number of the non-redundant bins of the spectrum, i.e. N/2+1
+     * (rounded down for odd lengths).
+     *
+     * @return number of the spectrum bins
+     */
+    public int getBins() {
+        return size/2 + 1;
+    }
+
+    /**
+     * Perform FFT on given real samples.
+     * Output arrays must hold at least {@link #getBins()} values, bin 'k'
+     * corresponds to frequency k*sampleRate/N.
+     *
+     * @param samples real input data, at least N values, are not modified
+     * @param re real parts of the resulting spectrum
+     * @param im imaginary parts of the resulting spectrum
+     */
+    public void transform(double[] samples, double[] re, double[] im) {
+        if (samples.length < size || re.length < getBins() || im.length < getBins()) {
+            throw new IllegalArgumentException("RealFftPlan: arrays are too short for size "+size);
+        }
+        if (full != null) {
+            transformOdd(samples, re, im);
+            return;
+        }
+        int m = size/2;
+
+        // Pack the even samples to the real parts and the odd ones to the imaginary parts
+        for (int i=0; i < m; i++) {
+            re[i] = samples[2*i];
+            im[i] = samples[2*i + 1];
+        }
+        half.transform(re, im);
+
+        // Separate spectra of the even and odd samples, and combine them together
+        double r0 = re[0];
+        double i0 = im[0];
+        re[0] = r0 + i0;
+        im[0] = 0;
+        re[m] = r0 - i0;
+        im[m] = 0;
+        for (int k=1; k <= m/2; k++) {
+            int j = m - k;
+            double zkr = re[k], zki = im[k];
+            double zjr = re[j], zji = im[j];
+            // Spectrum of the even samples: (Z[k] + conj(Z[m-k])) / 2
+            double er = 0.5 * (zkr + zjr);
+            double ei = 0.5 * (zki - zji);
+            // Spectrum of the odd samples: (Z[k] - conj(Z[m-k])) / 2i
+            double or = 0.5 * (zki + zji);
+            double oi = -0.5 * (zkr - zjr);
+            // Multiply by the twiddle factor
+            double tr = or*cos[k] - oi*sin[k];
+            double ti = or*sin[k] + oi*cos[k];
+            re[k] = er + tr;
+            im[k] = ei + ti;
+            // X[m-k] = conj(E[k] - W^k * O[k])
+            re[j] = er - tr;
+            im[j] = ti - ei;
+        }
+    }
+
+    /**
+     * Transform odd number of samples by complex FFT of the full length.
+     * 
+     * @param samples real input data
+     * @param re real parts of the resulting spectrum
+     * @param im imaginary parts of the resulting spectrum
+     */
+    private void transformOdd(double[] samples, double[] re, double[] im) {
+        double[][] w = work.get();
+        if (w == null) {
+            w = new double[][] {new double[size], new double[size]};
+            work.set(w);
+        }
+        System.arraycopy(samples, 0, w[0], 0, size);
+        Arrays.fill(w[1], 0);
+        full.transform(w[0], w[1]);
+        System.arraycopy(w[0], 0, re, 0, getBins());
+        System.arraycopy(w[1], 0, im, 0, getBins());
+    }
+
+}
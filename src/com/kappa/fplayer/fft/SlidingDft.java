@@ -0,0 +1,177 @@
+package com.kappa.fplayer.fft;
+
+/**
+ * Sliding Discrete Fourier Transform of selected bins.
+ * DFT of the last N samples is updated after every new sample in O(1) per bin:
+ * X[k] = (X[k] - oldest + newest) * e^(2*pi*i*k/N), which is cheaper than FFT
+ * of the whole frame if only a few bins are needed.
+ * Rounding errors of the recurrence are accumulated, therefore the bins are
+ * periodically recounted exactly by the Goertzel algorithm.
+ *
+ * <p>Window function can not be applied on the samples directly (every sample
+ * would need different coefficient after every shift). Windows from the
+ * generalized cosine family are applied in the frequency domain instead,
+ * as a weighted sum of neighbouring bins. Result then matches the periodic
+ * variant of the window (denominator N instead of N-1).
+ *
+ * <p><a href="http://en.wikipedia.org/wiki/Goertzel_algorithm">On Goertzel algorithm</a>
+ *
+ * @author Vojtech Vasek
+ */
+public class SlidingDft {
+
+    private final int       size;
+    private final int[]     watched;    // Bins requested by the user
+    private final int[]     tracked;    // Watched bins with their neighbours needed by the window
+    private final double[]  terms;      // Coefficients of the cosine window
+    private final double[]  rotRe;      // e^(2*pi*i*k/N) for every tracked bin
+    private final double[]  rotIm;
+    private final double[]  valueRe;    // Current DFT, indexed by bin, only tracked bins are valid
+    private final double[]  valueIm;
+
+    /**
+     * Prepare the transform.
+     *
+     * @param size length of the frame N
+     * @param watched bins to be counted, from 0 to N/2
+     * @param terms coefficients of the cosine window, see
+     * {@link Transform#cosineSumWindow(int, double[])}, {1} for no window
+     */
+    public SlidingDft(int size, int[] watched, double[] terms) {
+        this.size = size;
+        this.watched = watched.clone();
+        this.terms = terms.clone();
+
+        int bins = size/2 + 1;
+        boolean[] needed = new boolean[bins];
+        for (int k : watched) {
+            for (int j = 1 - terms.length; j < terms.length; j++) {
+                needed[fold(k + j)] = true;
+            }
+        }
+        int count = 0;
+        for (boolean b : needed) {
+            if (b) {
+                count++;
+            }
+        }
+        tracked = new int[count];
+        for (int k=0, i=0; k < bins; k++) {
+            if (needed[k]) {
+                tracked[i++] = k;
+            }
+        }
+
+        rotRe = new double[count];
+        rotIm = new double[count];
+        for (int i=0; i < count; i++) {
+            double fi = 2 * Math.PI * tracked[i] / size;
+            rotRe[i] = Math.cos(fi);
+            rotIm[i] = Math.sin(fi);
+        }
+        valueRe = new double[bins];
+        valueIm = new double[bins];
+    }
+
+    /**
+     * Map any bin index onto the non-redundant half of the spectrum.
+     *
+     * @param k bin index, may be negative or bigger than N/2
+     * @return index from 0 to N/2
+     */
+    private int fold(int k) {
+        k = ((k % size) + size) % size;
+        return k <= size/2 ? k : size - k;
+    }
+
+    /**
+     * Return number of bins, which must be updated after every sample.
+     *
+     * @return number of tracked bins
+     */
+    public int getTrackedBins() {
+        return tracked.length;
+    }
+
+    /**
+     * Shift the frame by one sample.
+     *
+     * @param newest sample entering the frame
+     * @param oldest sample leaving the frame
+     */
+    public void update(double newest, double oldest) {
+        double delta = newest - oldest;
+        for (int i=0; i < tracked.length; i++) {
+            int k = tracked[i];
+            double r = valueRe[k] + delta;
+            double m = valueIm[k];
+            valueRe[k] = r*rotRe[i] - m*rotIm[i];
+            valueIm[k] = r*rotIm[i] + m*rotRe[i];
+        }
+    }
+
+    /**
+     * Count all tracked bins exactly from given frame by the Goertzel algorithm.
+     *
+     * @param ring samples of the frame stored in a ring
+     * @param oldest index of the oldest sample in the ring
+     */
+    public void resync(double[] ring, int oldest) {
+        for (int i=0; i < tracked.length; i++) {
+            int k = tracked[i];
+            double coeff = 2 * rotRe[i];
+            double s1 = 0, s2 = 0;
+            for (int n=0, j=oldest; n < size; n++) {
+                double s = ring[j] + coeff*s1 - s2;
+                s2 = s1;
+                s1 = s;
+                if (++j == size) {
+                    j = 0;
+                }
+            }
+            // One more step with zero input, then X[k] = s[N] - e^(-2*pi*i*k/N) * s[N-1]
+            double s = coeff*s1 - s2;
+            valueRe[k] = s - rotRe[i]*s1;
+            valueIm[k] = rotIm[i]*s1;
+        }
+    }
+
+    /**
+     * Write windowed values of the watched bins into given spectrum arrays.
+     * Other bins are left untouched.
+     *
+     * @param re real parts of the spectrum, at least N/2+1 values
+     * @param im imaginary parts of the spectrum, at least N/2+1 values
+     */
+    public void get(double[] re, double[] im) {
+        for (int k : watched) {
+            double sumRe = terms[0]*valueRe[k];
+            double sumIm = terms[0]*valueIm[k];
+            for (int j=1; j < terms.length; j++) {
+                // Neighbours from the other half of the spectrum are complex conjugates
+                double w = (j % 2 == 0 ? 0.5 : -0.5) * terms[j];
+                int lower = k - j, upper = k + j;
+                int l = fold(lower), u = fold(upper);
+                double lIm = inMirror(lower) ? -valueIm[l] : valueIm[l];
+                double uIm = inMirror(upper) ? -valueIm[u] : valueIm[u];
+                sumRe += w * (valueRe[l] + valueRe[u]);
+                sumIm += w * (lIm + uIm);
+            }
+            re[k] = sumRe;
+            im[k] = sumIm;
+        }
+    }
+
+    /**
+     * Return whether the value of given bin is stored as a complex conjugate
+     * of the bin from the non-redundant half.
+     *
+     * @param k bin index, may be negative or bigger than N/2
+     * @return true if the bin must be conjugated
+     */
+    private boolean inMirror(int k) {
+        k = ((k % size) + size) % size;
+        return k > size/2;
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.kappa.fplayer.fft;
+
+import com.kappa.fplayer.monitor.Metrics;
+
+/**
+ * Short-time Fourier transform of a stream of samples.
+ * Incoming samples are kept in a ring of the last N samples (N is the length
+ * of the transform), spectrum of the ring is counted after every 'hop' new samples.
+ * Consecutive frames therefore overlap by N-hop samples, e.g. hop of N/4 gives
+ * 75% overlap and four times more spectra than analysis of separate buffers,
+ * while the frequency resolution stays the same.
+ *
+ * <p>Samples are stored only once, window function is applied while the ring
+ * is unrolled into the input of the transform.
+ *
+ * <p>If only some bins of the spectrum are needed, see {@link #setWatchedBins(int[], double[])},
+ * the transform can switch to {@link SlidingDft}, which updates just these bins
+ * after every sample. It is chosen when updating the bins for the whole hop
+ * is cheaper than one FFT, i.e. roughly when bins*hop &lt; N*log2(N).
+ * Other bins of the spectrum are then left zero.
+ *
+ * @author Vojtech Vasek
+ */
+public class Stft {
+
+    /**
+     * Receiver of the counted spectra.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every 'hop' samples with the spectrum of the last N samples.
+         * Arrays are reused for the next frame, listener must not keep them.
+         *
+         * @param re real parts of the N/2+1 bins
+         * @param im imaginary parts of the N/2+1 bins
+         */
+        void spectrumReady(double[] re, double[] im);
+    }
+
+    private final int           size;
+    private final int           hop;
+    private final double[]      window;
+    private final RealFftPlan   plan;
+    private final Listener      listener;
+
+    private final double[]      ring;       // Last 'size' samples
+    private final double[]      frame;      // Windowed input of the transform
+    private final double[]      re, im;     // Resulting spectrum
+    private int                 position;   // Where the next sample will be stored in the ring
+    private int                 pending;    // Samples received since the last spectrum
+    private SlidingDft          sliding;    // Used instead of FFT if not null
+    private long                listenerNanos;  // Time spent by the listener during the current push
+    private int                 unsynced;   // Samples since the last exact recount of the sliding DFT
+
+    /**
+     * Prepare the transform.
+     *
+     * @param size length of the transform, i.e. number of samples in one frame
+     * @param hop number of samples between two consecutive frames, from 1 to 'size'
+     * @param window window function coefficients, at least 'size' values
+     * @param listener receiver of the spectra
+     */
+    public Stft(int size, int hop, double[] window, Listener listener) {
+        if (hop < 1 || hop > size) {
+            throw new IllegalArgumentException("Stft: hop must be from 1 to "+size+", got "+hop);
+        }
+        this.size = size;
+        this.hop = hop;
+        this.window = window;
+        this.listener = listener;
+        plan = RealFftPlan.forSize(size);
+        ring = new double[size];
+        frame = new double[size];
+        re = new double[plan.getBins()];
+        im = new double[plan.getBins()];
+    }
+
+    /**
+     * Return length of the transform.
+     *
+     * @return number of samples in one frame
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return number of samples between two consecutive frames.
+     *
+     * @return hop size
+     */
+    public int getHop() {
+        return hop;
+    }
+
+    /**
+     * Tell which bins of the spectrum are really used, so that the cheaper
+     * algorithm can be chosen.
+     *
+     * @param bins indices of the used bins, from 0 to N/2
+     * @param terms coefficients of the window function as a sum of cosines
+     * (see {@link Transform#cosineSumWindow(int, double[])}), null if the window
+     * is not from this family, sliding DFT is not possible then
+     */
+    public void setWatchedBins(int[] bins, double[] terms) {
+        sliding = null;
+        if (bins == null || terms == null) {
+            return;
+        }
+        SlidingDft candidate = new SlidingDft(size, bins, terms);
+        // Every tracked bin is updated after every sample, and the same work
+        // is spent once per frame length on the exact recount
+        double slidingCost = 2.0 * candidate.getTrackedBins() * hop;
+        double fftCost = size * Math.log(size) / Math.log(2);
+        if (slidingCost < fftCost) {
+            sliding = candidate;
+            sliding.resync(ring, position);
+            unsynced = 0;
+            for (int i=0; i < re.length; i++) {
+                re[i] = 0;
+                im[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Return whether the sliding DFT is used instead of FFT.
+     *
+     * @return true if only the watched bins are counted
+     */
+    public boolean isSliding() {
+        return sliding != null;
+    }
+
+    /**
+     * Add new samples to the stream. Listener is notified synchronously
+     * for every completed hop.
+     *
+     * @param samples array with the new samples
+     * @param offset index of the first new sample
+     * @param length number of the new samples
+     */
+    public void push(double[] samples, int offset, int length) {
+        long start = System.nanoTime();
+        listenerNanos = 0;
+        if (sliding != null) {
+            pushSliding(samples, offset, length);
+        } else {
+            pushFft(samples, offset, length);
+        }
+        Metrics.TRANSFORM.record(System.nanoTime() - start - listenerNanos);
+    }
+
+    /**
+     * Add new samples to the stream, transform every completed hop by FFT.
+     *
+     * @param samples array with the new samples
+     * @param offset index of the first new sample
+     * @param length number of the new samples
+     */
+    private void pushFft(double[] samples, int offset, int length) {
+        while (length > 0) {
+            // Copy at most to the end of the ring and at most to the end of the hop
+            int count = Math.min(length, Math.min(size - position, hop - pending));
+            System.arraycopy(samples, offset, ring, position, count);
+            offset += count;
+            length -= count;
+            position = (position + count) % size;
+            pending += count;
+
+            if (pending == hop) {
+                pending = 0;
+                transform();
+            }
+        }
+    }
+
+    /**
+     * Add new samples to the stream sample by sample, updating the sliding DFT.
+     *
+     * @param samples array with the new samples
+     * @param offset index of the first new sample
+     * @param length number of the new samples
+     */
+    private void pushSliding(double[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            double sample = samples[i];
+            sliding.update(sample, ring[position]);
+            ring[position] = sample;
+            if (++position == size) {
+                position = 0;
+            }
+            if (++unsynced == size) {
+                unsynced = 0;
+                sliding.resync(ring, position);
+            }
+            if (++pending == hop) {
+                pending = 0;
+                sliding.get(re, im);
+                notifyListener();
+            }
+        }
+    }
+
+    /**
+     * Forget all samples received so far.
+     */
+    public void reset() {
+        for (int i=0; i < size; i++) {
+            ring[i] = 0;
+        }
+        position = 0;
+        pending = 0;
+        if (sliding != null) {
+            sliding.resync(ring, position);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Unroll the ring into the windowed frame, oldest sample first,
+     * transform it and notify the listener.
+     */
+    private void transform() {
+        int tail = size - position;
+        Kernels kernels = Kernels.get();
+        kernels.applyWindow(ring, position, window, 0, frame, 0, tail);
+        kernels.applyWindow(ring, 0, window, tail, frame, tail, position);
+        plan.transform(frame, re, im);
+        notifyListener();
+    }
+
+    /**
+     * Pass the spectrum to the listener, time spent by the listener
+     * is not counted as the time of the transform.
+     */
+    private void notifyListener() {
+        long start = System.nanoTime();
+        listener.spectrumReady(re, im);
+        listenerNanos += System.nanoTime() - start;
+    }
+
+}
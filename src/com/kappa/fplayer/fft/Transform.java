@@ -5,8 +5,9 @@ import java.util.Arrays;
 
 /**
  * Class for performation of the Fast Fourier Transform algorithm.
- * Recursive function is used here. FFT expects array with length of power of two,
- * otherwise longer array is created and returned.
+ * The transform itself is done by {@link FftPlan}, this class keeps the
+ * window functions and a compatibility wrapper for arrays of complex numbers.
+ * Arrays of any length can be transformed.
  * 
  * <p><a href="http://en.wikipedia.org/wiki/Window_function">Further window functions information</a>
  * 
@@ -14,22 +15,10 @@ import java.util.Arrays;
  */
 public class Transform {
     
-    /**
-     * Returns nearest power of integer 'base', which is bigger
-     * or equal to given integer 'value'.
-     * 
-     * @param value value to be processed
-     * @param base base of a number, whose power we are computing
-     * @return nearest power of 'base' bigger or equal to 'value'
-     */
-    private static int getPow(int value, int base) {
-        int nearest = 1;
-        while (nearest < value) {
-            nearest *= base;
-        }
-        return nearest;
-    }
-
+    // Coefficients of the 4-term Blackman-Harris and the flat-top windows
+    private static final double[] BLACKMAN_HARRIS = {0.35875, 0.48829, 0.14128, 0.01168};
+    private static final double[] FLAT_TOP = {0.21557895, 0.41663158, 0.277263158, 0.083578947, 0.006947368};
+    
     /**
      * Counts Hamming window coefficients.
      * 
@@ -62,6 +51,107 @@ public class Transform {
         return window;
     }
     
+    /**
+     * Counts coefficients of generalized cosine window, i.e. sum of the cosines
+     * a0 - a1*cos(2*pi*n/(N-1)) + a2*cos(4*pi*n/(N-1)) - ...
+     * Hamming, Hanning, Blackman-Harris and flat-top windows belong to this family.
+     * 
+     * @param size length of the window
+     * @param a coefficients of the cosines, signs are alternated automatically
+     * @return window coefficients
+     */
+    public static double[] cosineSumWindow(int size, double[] a) {
+        double[] window = new double[size];
+        for (int i=0; i < size; i++) {
+            double fi = (2.0 * Math.PI * i) / (size - 1);
+            double value = 0;
+            for (int k=0; k < a.length; k++) {
+                value += (k % 2 == 0 ? a[k] : -a[k]) * Math.cos(k * fi);
+            }
+            window[i] = value;
+        }
+        
+        return window;
+    }
+    
+    /**
+     * Counts 4-term Blackman-Harris window coefficients.
+     * Side lobes are suppressed below -92 dB at the cost of wider main lobe.
+     * 
+     * @param size length of the window
+     * @return Blackman-Harris window coefficients
+     */
+    public static double[] blackmanHarrisWindow(int size) {
+        return cosineSumWindow(size, BLACKMAN_HARRIS);
+    }
+    
+    /**
+     * Return coefficients of the cosines of the 4-term Blackman-Harris window.
+     * 
+     * @return copy of the coefficients
+     */
+    public static double[] blackmanHarrisTerms() {
+        return BLACKMAN_HARRIS.clone();
+    }
+    
+    /**
+     * Counts flat-top window coefficients.
+     * Main lobe is flat, therefore the amplitude of sinusoids is measured precisely
+     * regardless where their frequency lies between the bins.
+     * 
+     * @param size length of the window
+     * @return flat-top window coefficients
+     */
+    public static double[] flatTopWindow(int size) {
+        return cosineSumWindow(size, FLAT_TOP);
+    }
+    
+    /**
+     * Return coefficients of the cosines of the flat-top window.
+     * 
+     * @return copy of the coefficients
+     */
+    public static double[] flatTopTerms() {
+        return FLAT_TOP.clone();
+    }
+    
+    /**
+     * Counts Kaiser window coefficients.
+     * Parameter 'beta' trades width of the main lobe for level of the side lobes,
+     * 0 gives rectangular window, about 8.6 is similar to Blackman-Harris window.
+     * 
+     * @param size length of the window
+     * @param beta shape parameter
+     * @return Kaiser window coefficients
+     */
+    public static double[] kaiserWindow(int size, double beta) {
+        double[] window = new double[size];
+        double denom = besselI0(beta);
+        for (int i=0; i < size; i++) {
+            double r = (2.0 * i) / (size - 1) - 1;
+            window[i] = besselI0(beta * Math.sqrt(Math.max(0, 1 - r*r))) / denom;
+        }
+        
+        return window;
+    }
+    
+    /**
+     * Modified Bessel function of the first kind and zeroth order,
+     * counted from its power series.
+     * 
+     * @param x argument
+     * @return value of I0(x)
+     */
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        double half = x / 2;
+        for (int k=1; k < 50 && term > 1e-16 * sum; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+        }
+        return sum;
+    }
+    
     /**
      * Counts neutral rectangular window, which does not have any effects.
      * 
@@ -90,62 +180,39 @@ public class Transform {
     }
     
     /**
-     *  Recursively computes Fast Fourier Transform performed on input array 'ca'.
-     *  Operates in O(N*log(N)), where N is length of the input array.
+     * Performs an application of window function on given real data array.
      * 
-     * @param ca input array of complex numbers i.e. sound track
-     * @return transformed array of complex numbers
+     * @param data real data array, on which the window will be applied
+     * @param window window function coefficients
      */
-    private static Complex[] recFFT(Complex[] ca, int n) {
-        Complex[] cy = new Complex[n];
-
-        if (n == 1) {
-            cy[0] = ca[0];
-            return cy;
-        }
-
-        Complex[] ca_s = new Complex[n/2];
-        Complex[] ca_l = new Complex[n/2];
-        Complex[] cy_s, cy_l;
-
-        /*
-         * Initialization of arrays:
-         *   "ca_s" - elements with even index from array 'ca'
-         *   "ca_l" - elements with odd index from array 'ca'
-         */
-        int i;
-        for (i=0; i < n/2; i++) {
-            ca_s[i] = ca[2*i];
-            ca_l[i] = ca[2*i + 1];
-        }
-
-        /* Recursion ready to run */
-        cy_s = recFFT(ca_s, n/2);
-        cy_l = recFFT(ca_l, n/2);
-
-        /* Use data computed in recursion */
-        for (i=0; i < n/2; i++) {
-            /* Multiply elements of 'cy_l' by the twiddle factors e^(-2*pi*i/N * k) */
-            Complex.complexMultToFirst(cy_l[i], Complex.polarToComplex(1, -2*Math.PI*i/n));
-        }
-        for (i=0; i < n/2; i++) {
-            cy[i] = Complex.complexAdd(cy_s[i], cy_l[i]);
-            cy[i + n/2] = Complex.complexSub(cy_s[i], cy_l[i]);
-        }
-
-        return cy;
+    public static void applyWindow(double[] data, double[] window) {
+        Kernels.get().applyWindow(data, 0, window, 0, data, 0, Math.min(data.length, window.length));
     }
     
     /**
      * Perform FFT on given complex data array, return the result.
+     * Compatibility wrapper over {@link FftPlan}, the result has the same
+     * length as the input.
      * 
      * @param ca input complex data array
      * @return transformed complex data array
      */
     public static Complex[] transform(Complex[] ca) {
-        /*  Round the length of input array to the nearest power of 2 */
-        int n = getPow(ca.length, 2);
-        return recFFT(ca, n);
+        int n = ca.length;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i=0; i < ca.length; i++) {
+            re[i] = ca[i].getReal();
+            im[i] = ca[i].getImaginary();
+        }
+        
+        FftPlan.forSize(n).transform(re, im);
+        
+        Complex[] cy = new Complex[n];
+        for (int i=0; i < n; i++) {
+            cy[i] = new Complex(re[i], im[i]);
+        }
+        return cy;
     }
     
 }
@@ -1,18 +1,21 @@
 
 package com.kappa.fplayer.graphics;
 
-import com.kappa.fplayer.fft.Complex;
+import com.kappa.fplayer.fft.Kernels;
+import com.kappa.fplayer.monitor.Metrics;
 import com.kappa.fplayer.sound.Band;
+import com.kappa.fplayer.sound.BandMapper;
 import com.kappa.fplayer.sound.SoundReader;
+import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
-import javax.swing.JPanel;
-import javax.swing.SwingUtilities;
-import javax.swing.Timer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *
@@ -20,9 +23,17 @@ import javax.swing.Timer;
  * Each tower represents/shows maximum decibel value of frequency, which this tower
  * covers. Frequency interval is for each tower stored in Band object.
  * 
+ * <p>The reader thread only counts the levels of the towers and publishes them
+ * through a {@link SpectrumExchange}. Towers are moved and painted by an own
+ * render thread at a fixed frame rate, by a {@link TowerRenderer}, and copied
+ * into the {@link BufferStrategy} of this canvas. The frame rate then does not
+ * depend on the size of the audio buffers and neither the reader thread nor
+ * the EDT wait for each other. The frame rate is set by the system
+ * property <code>fplayer.fps</code> ({@link #DEFAULT_FPS} by default).
+ * 
  * @author Vojtech Vasek
  */
-public class Animator extends JPanel implements Runnable {
+public class Animator extends Canvas implements Runnable {
     
     /**
      * Defines number of towers visible.
@@ -40,24 +51,36 @@ public class Animator extends JPanel implements Runnable {
      */
     public static final double  DEFAULT_SCALE_FACTOR = 1.7;
     /**
-     * How quickly should the towers be moved (raise/fall step).
+     * Default number of painted frames per second.
      */
-    public static final double  DEFAULT_MOVEMENT_SPEED = 1.0/8;
+    public static final int     DEFAULT_FPS = 60;
     
-    private Complex[]   data;
-    private Tower[]     towers;
+    private double[]    dataRe, dataIm;
+    private double[]    levels;     // Decibel values of the spectrum, used for normalization
+    private double[]    bandLevels; // Decibel values of the bands
+    private volatile Tower[] towers;
+    private volatile SpectrumExchange exchange; // Values of the towers for the render thread
+    private volatile boolean erasure;   // Should the towers fall down regardless of the values?
     private Band[]      bands;
+    private BandMapper  bandMapper;
+    private BandMapper.Mode reduction = BandMapper.Mode.peak;
     
     private final int octaveDenum;
     private final boolean normalize = false;
     private final Color backgroundColor;
     
-    private Timer erasureTimer;
     private int bufferLength;
     private float sampleRate;
-    private BufferedImage buffImage;
-    private Graphics2D graphics;
-    protected GraphicsConfiguration gc;
+    private volatile int fps;
+    private volatile Thread renderer;   // The running render thread, null when it should stop
+    private volatile GraphicsConfiguration gc; // Taken once with the peer, asking for it locks the tree
+    private TowerField field;       // Animated state of the towers, owned by the render thread
+    private long lastFrame;         // Time of the previous frame in ns
+    private TowerRenderer painter;  // Painter of the towers, owned by the render thread
+    private final Spectrogram spectrogram = new Spectrogram(); // Owned by the render thread
+    private volatile boolean showSpectrogram;
+    private SpectrumExchange columnExchange; // Exchange and sequence number of the last
+    private long columnSequence;            // frame added to the spectrogram
     
     /**
      * Initialize default values and prepare towers with their bands.
@@ -68,42 +91,78 @@ public class Animator extends JPanel implements Runnable {
         bufferLength = SoundReader.DEFAULT_BUFFER_LENGTH;
         sampleRate = SoundReader.DEFAULT_SAMPLE_RATE;
         this.backgroundColor = backgroundColor;
-        init();
+        fps = Math.max(1, Integer.getInteger("fplayer.fps", DEFAULT_FPS));
+        setBackground(backgroundColor);
+        // Everything is painted by the render thread
+        setIgnoreRepaint(true);
     }
     
     /**
-     * Prepare the towers with bands for them.
+     * Set the number of painted frames per second.
+     * 
+     * @param fps target frame rate
      */
-    private void init() {
-        gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
-        
-        // Timer, which will wait for the towers to fall down
-        erasureTimer = new Timer(42, (e) -> {
-            if (data == null || towers == null) {
-                erasureTimer.stop();
-                return;
-            }
-            for (Complex c : data) {
-                c.set(0, 0);
-            }
-            // Are the towers all cleared out?
-            boolean done = true;
-            for (Tower t : towers) {
-                if (!t.isZero()) {
-                    done = false;
-                    break;
-                }
-            }
-            if (done) {
-                erasureTimer.stop();
-            }
-            try {
-                updateState();
-            } catch (Exception ex) {
-                System.err.println(ex);
-                erasureTimer.stop();
-            }
-        });
+    public void setTargetFps(int fps) {
+        this.fps = Math.max(1, fps);
+    }
+    
+    /**
+     * Return the number of painted frames per second.
+     * 
+     * @return target frame rate
+     */
+    public int getTargetFps() {
+        return fps;
+    }
+    
+    /**
+     * Set whether the spectrogram is shown instead of the towers.
+     * 
+     * @param show true to show the spectrogram
+     */
+    public void setSpectrogram(boolean show) {
+        showSpectrogram = show;
+    }
+    
+    /**
+     * Return whether the spectrogram is shown instead of the towers.
+     * 
+     * @return true if the spectrogram is shown
+     */
+    public boolean isSpectrogram() {
+        return showSpectrogram;
+    }
+    
+    /**
+     * Start the render thread, when the canvas gets its peer.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config == null) {
+            config = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        gc = config;
+        Thread t = new Thread(this, "Animator render");
+        t.setDaemon(true);
+        renderer = t;
+        t.start();
+    }
+    
+    /**
+     * Stop the render thread before the peer of the canvas is destroyed.
+     * The thread is not waited for, AWT holds the tree lock here; it stops
+     * after the frame it is just painting.
+     */
+    @Override
+    public void removeNotify() {
+        Thread t = renderer;
+        renderer = null;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        super.removeNotify();
     }
     
     /**
@@ -119,56 +178,86 @@ public class Animator extends JPanel implements Runnable {
         this.sampleRate = sampleRate;
         
         bands = Band.countISOBands(octaveDenum, DEFAULT_OCTAVE_BASE, sampleRate);
-        towers = new Tower[bands.length];
-        for (int i=0; i < towers.length; i++) {
-            towers[i] = new Tower(bands[i]);
-            towers[i].setLabel(bands[i].toString());
+        bandMapper = new BandMapper(bands, bufferLength, sampleRate);
+        bandLevels = new double[bands.length];
+        Tower[] ts = new Tower[bands.length];
+        for (int i=0; i < ts.length; i++) {
+            ts[i] = new Tower(bands[i]);
+            ts[i].setLabel(bands[i].toString());
         }
+        exchange = new SpectrumExchange(bands.length);
+        towers = ts;
+    }
+
+    /**
+     * Return indices of the spectrum bins, which are used to count state of the towers.
+     * 
+     * @return sorted indices of the used bins
+     */
+    public int[] getUsedBins() {
+        return bandMapper.getUsedBins();
+    }
+    
+    /**
+     * Set how the bins of one band are reduced into the value of its tower.
+     * 
+     * @param reduction reduction mode, peak is used by default
+     */
+    public void setReduction(BandMapper.Mode reduction) {
+        this.reduction = reduction;
+    }
+    
+    /**
+     * Return how the bins of one band are reduced into the value of its tower.
+     * 
+     * @return reduction mode
+     */
+    public BandMapper.Mode getReduction() {
+        return reduction;
+    }
+    
+    /**
+     * Return number of the shown bands, i.e. number of the towers.
+     * 
+     * @return number of the bands, 0 if audio info is not set yet
+     */
+    public int getBandCount() {
+        return bands == null ? 0 : bands.length;
     }
 
     /**
      * Called by SoundReader requesting to paint new data analysis.
+     * Only the non-redundant half of the spectrum is expected, i.e. bufferLength/2+1
+     * values, where index 'k' refers to frequency k*sampleRate/bufferLength.
      * 
-     * @param data audio data values after FFT was processed on them
+     * @param re real parts of the audio data values after FFT was processed on them
+     * @param im imaginary parts of the audio data values after FFT was processed on them
      */
-    public void setData(Complex[] data) {
-        this.data = data;
+    public void setData(double[] re, double[] im) {
+        this.dataRe = re;
+        this.dataIm = im;
     }
     
     /**
      * After calling this method, towers will slowly fall to the bottom.
      */
     public void performErasure() {
-        erasureTimer.start();
+        erasure = true;
     }
     
     /**
      * This method will stop erasuring the towers, i.e. moving them down.
      */
     public void stopErasure() {
-        erasureTimer.stop();
+        erasure = false;
     }
     
     /**
-     * Check, if the situation changed, e.g. initialization,
-     * window resize etc. and adapt to that situation.
-     */
-    private void checkGraphics() {
-        synchronized(this) {
-            if (buffImage == null || graphics == null || (buffImage.getWidth() != getWidth() || buffImage.getHeight() != getHeight())) {
-                buffImage = gc.createCompatibleImage(getWidth(), getHeight());
-                graphics = buffImage.createGraphics();
-                graphics.setColor(backgroundColor);
-                graphics.fillRect(0, 0, buffImage.getWidth(), buffImage.getHeight());
-            }
-        }
-    }
-    
-    /**
-     * Count the animation of all the towers and repaint them.
+     * Count the new state of all the towers and publish it for the render thread.
      * 
      * The number of visible slabs in Tower is set by percentual value ([0,100]),
-     * and it is counted from maximum decibel value in the Band of that Tower.
+     * and it is counted from decibel value of the Band of that Tower (maximum by default,
+     * see {@link #setReduction(BandMapper.Mode)}).
      * The decibel value must be scaled, because 100dB is usualy unpleasant for human,
      * music will not usualy go to this values and we want the values
      * to be distributed in [0,100] interval. Therefore we use SCALE_FACTOR
@@ -182,12 +271,20 @@ public class Animator extends JPanel implements Runnable {
         if (bands == null || towers == null) {
             throw new Exception("updateState(): audio info is not set, call setAudioInfo() first!");
         }
-        checkGraphics();
+        
+        // Spectrum is reduced into the bands in one pass
+        long start = System.nanoTime();
+        bandMapper.reduce(dataRe, dataIm, reduction, bandLevels);
         
         double min = 0, max = Double.MIN_VALUE;
         if (normalize) {
-            for (Complex c : data) {
-                double akt = DEFAULT_SCALE_FACTOR * Complex.decibelv2(c);
+            int bins = Math.min(dataRe.length, dataIm.length);
+            if (levels == null || levels.length != bins) {
+                levels = new double[bins];
+            }
+            Kernels.get().decibels(dataRe, dataIm, levels, bins);
+            for (double level : levels) {
+                double akt = DEFAULT_SCALE_FACTOR * level;
                 if (akt > max && !Double.isInfinite(akt)) {
                     max = akt;
                 }
@@ -196,60 +293,165 @@ public class Animator extends JPanel implements Runnable {
                 }
             }
         }
+        Metrics.BAND_REDUCE.record(System.nanoTime() - start);
         
-        Tower t;
-        Band b;
-        double bmax;
-        // Recompute state of every tower
-        for (Tower tower : towers) {
-            t = tower;
-            b = t.getBand();
-            bmax = 0;
-            // Find the biggest value in the band which this tower covers
-            for (int i = b.frequencyStart; i < b.frequencyEnd; i++) {
-                // Index into data[] does not refers to the same frequency directly, transformation must be performed
-                double nvalue = DEFAULT_SCALE_FACTOR * Complex.decibelv2(data[(i*bufferLength/(int)sampleRate)]);
-                if (normalize) {
-                    nvalue = normalize(min, max, nvalue);
+        publish(min, max);
+    }
+    
+    /**
+     * Publish already reduced levels of the bands as the new state of the towers.
+     * Levels are expected in the same form as the values counted from
+     * the spectrum (see {@link #updateState()}), this is used when the levels
+     * are known in advance, e.g. read from a cache.
+     * 
+     * @param levels decibel values of the bands, one for every tower
+     * @throws java.lang.Exception if method setAudioInfo() was not called yet
+     * or the number of levels does not match the number of bands
+     */
+    public void updateBands(double[] levels) throws Exception {
+        if (bands == null || towers == null) {
+            throw new Exception("updateBands(): audio info is not set, call setAudioInfo() first!");
+        }
+        if (levels.length != bandLevels.length) {
+            throw new Exception("updateBands(): expected "+bandLevels.length+" levels, got "+levels.length);
+        }
+        System.arraycopy(levels, 0, bandLevels, 0, bandLevels.length);
+        
+        double min = 0, max = Double.MIN_VALUE;
+        if (normalize) {
+            for (double level : bandLevels) {
+                double akt = DEFAULT_SCALE_FACTOR * level;
+                if (akt > max && !Double.isInfinite(akt)) {
+                    max = akt;
                 }
-                if (nvalue > bmax) {
-                    bmax = nvalue;
+                if (akt < min && !Double.isInfinite(akt)) {
+                    min = akt;
                 }
             }
-            // The value, which the tower differs from the state, in which it should be
-            double diff = bmax - t.getValue();
-            if (diff != 0) {
-                // One-step move -- smooth animation, can't react to quick changes
-//                t.setValue(t.getValue() + diff/Math.abs(diff));
-                // Acceleration move
-                t.setValue(t.getValue() + Math.floor(diff*DEFAULT_MOVEMENT_SPEED));
-                // Jump move -- immediate change of state to where it should be
-//                t.setValue(t.getValue() + diff);
+        }
+        publish(min, max);
+    }
+    
+    /**
+     * Count the value of every tower from the levels of the bands and hand
+     * them over to the render thread, which always takes only the latest ones.
+     * 
+     * @param min minimal scaled level, used for normalization
+     * @param max maximal scaled level, used for normalization
+     */
+    private void publish(double min, double max) {
+        SpectrumExchange ex = exchange;
+        float[] values = ex.getBackBuffer();
+        for (int i=0; i < Math.min(values.length, bandLevels.length); i++) {
+            double nvalue = DEFAULT_SCALE_FACTOR * bandLevels[i];
+            if (normalize) {
+                nvalue = normalize(min, max, nvalue);
             }
+            values[i] = (float)Math.max(0, nvalue);
         }
-        // Paint the new state of every tower into the image buffer
-        float towerLen = (float)getWidth()/towers.length;
-        synchronized(this) {
-            for (int i=0; i < towers.length; i++) {
-                towers[i].render(graphics, backgroundColor, (int)(i*towerLen), 0, (int)towerLen, getHeight());
+        ex.publish();
+    }
+    
+    /**
+     * Advance the animation of the towers by the time elapsed since the previous
+     * frame. Towers are moved towards their published values, or to the bottom
+     * during the erasure.
+     * 
+     * @param ts towers to be moved
+     * @param values published values of the towers
+     */
+    private void moveTowers(Tower[] ts, float[] values) {
+        long now = System.nanoTime();
+        if (field == null || field.size() != ts.length) {
+            field = new TowerField(ts.length, DEFAULT_SCALE_FACTOR);
+            lastFrame = now;
+        }
+        field.advance(erasure ? null : values, now - lastFrame);
+        lastFrame = now;
+        for (int i=0; i < ts.length; i++) {
+            ts[i].setValue(field.getLevel(i));
+            ts[i].setPeak(field.getPeak(i));
+        }
+    }
+    
+    /**
+     * Paint one frame into the buffer strategy and show it.
+     * Contents of the buffers may be lost at any time (e.g. on a display change),
+     * the frame is then painted again.
+     */
+    private void renderFrame() {
+        int width = getWidth(), height = getHeight();
+        if (width <= 0 || height <= 0 || !isDisplayable()) {
+            return;
+        }
+        BufferStrategy strategy = getBufferStrategy();
+        if (strategy == null) {
+            createBufferStrategy(2);
+            strategy = getBufferStrategy();
+        }
+        Tower[] ts = towers;
+        SpectrumExchange ex = exchange;
+        BufferedImage image = null;
+        boolean waterfall = showSpectrogram;
+        if (ts != null && ex != null) {
+            float[] values = ex.latest();
+            moveTowers(ts, values);
+            long start = System.nanoTime();
+            if (waterfall) {
+                // Columns follow the published spectra, not the frame rate
+                if (ex != columnExchange || ex.getSequence() != columnSequence) {
+                    spectrogram.addColumn(erasure ? null : values, ts.length, width, height);
+                    columnExchange = ex;
+                    columnSequence = ex.getSequence();
+                }
+            } else {
+                if (painter == null) {
+                    painter = new TowerRenderer(backgroundColor);
+                }
+                image = painter.render(gc, ts, width, height);
             }
+            Metrics.TOWER_RENDER.record(System.nanoTime() - start);
         }
-        SwingUtilities.invokeLater(this);
+        do {
+            long start = System.nanoTime();
+            do {
+                // The whole frame is copied at once, the buffers may be lost between the frames
+                Graphics2D g = (Graphics2D)strategy.getDrawGraphics();
+                try {
+                    if (waterfall && ts != null) {
+                        spectrogram.paint(g);
+                    } else if (image != null) {
+                        g.drawImage(image, 0, 0, null);
+                    } else {
+                        g.setColor(backgroundColor);
+                        g.fillRect(0, 0, width, height);
+                    }
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+            Toolkit.getDefaultToolkit().sync();
+            Metrics.REPAINT.record(System.nanoTime() - start);
+        } while (strategy.contentsLost());
     }
 
     /**
-     * Take the prepared buffered image and paint it on this panel.
+     * Nothing is painted by AWT, the render thread paints every frame.
      * 
-     * @param g Graphics object, where this image will be painted
+     * @param g ignored
      */
     @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        synchronized(this) {
-            if (buffImage != null) {
-                g.drawImage(buffImage, 0, 0, null);
-            }
-        }
+    public void paint(Graphics g) {
+    }
+    
+    /**
+     * Nothing is painted by AWT, not even the background.
+     * 
+     * @param g ignored
+     */
+    @Override
+    public void update(Graphics g) {
     }
     
     /**
@@ -278,10 +480,26 @@ public class Animator extends JPanel implements Runnable {
     }
 
     /**
-     * Perform repainting of this panel.
+     * Render loop, paints a frame in every period of the target frame rate.
+     * Frames, which were not painted in time, are skipped, not caught up.
      */
     @Override
     public void run() {
-        repaint();
+        long next = System.nanoTime();
+        while (renderer == Thread.currentThread() && isDisplayable()) {
+            try {
+                renderFrame();
+            } catch (IllegalStateException ex) {
+                // The peer is just being destroyed
+            }
+            long period = 1_000_000_000L / fps;
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            } else {
+                next = System.nanoTime();
+            }
+        }
     }
 }
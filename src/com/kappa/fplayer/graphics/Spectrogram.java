@@ -0,0 +1,115 @@
+
+package com.kappa.fplayer.graphics;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Time-frequency waterfall of the values of the bands. Time goes from the left
+ * to the right, the lowest band is on the bottom, loudness is shown by color.
+ *
+ * <p>The history is kept in an image as wide as the shown area, which is used
+ * as a ring buffer of columns. New column is written straight into the pixels
+ * of the image over the oldest one, colors are taken from a precomputed table,
+ * so adding a column costs O(height) and nothing is scrolled. The image is
+ * shown from the oldest column by two copies.
+ *
+ * @author Vojtech Vasek
+ */
+public class Spectrogram {
+
+    /**
+     * Number of colors in the colormap.
+     */
+    public static final int     PALETTE_SIZE = 256;
+
+    /**
+     * Colors of the colormap from the silence to the maximal value,
+     * the colors between them are interpolated.
+     */
+    private static final Color[] GRADIENT = {
+        Color.BLACK, new Color(40, 0, 110), new Color(180, 0, 120),
+        new Color(255, 90, 0), new Color(255, 220, 0), Color.WHITE
+    };
+    private static final int[]  PALETTE = createPalette();
+
+    private BufferedImage   image;
+    private int[]           pixels;     // Pixels of the image, row by row
+    private int[]           rowBands;   // Index of the band shown on every row
+    private int             bands;      // Number of the bands, for which rowBands are counted
+    private int             head;       // Column, where the next values will be written
+
+    /**
+     * Interpolate the colors of the gradient into the colormap.
+     *
+     * @return RGB colors for values from 0 to {@link #PALETTE_SIZE} - 1
+     */
+    private static int[] createPalette() {
+        int[] palette = new int[PALETTE_SIZE];
+        int segments = GRADIENT.length - 1;
+        for (int i=0; i < PALETTE_SIZE; i++) {
+            double pos = (double)i / (PALETTE_SIZE - 1) * segments;
+            int s = Math.min((int)pos, segments - 1);
+            double t = pos - s;
+            Color a = GRADIENT[s], b = GRADIENT[s + 1];
+            int r = (int)Math.round(a.getRed() + t*(b.getRed() - a.getRed()));
+            int g = (int)Math.round(a.getGreen() + t*(b.getGreen() - a.getGreen()));
+            int bl = (int)Math.round(a.getBlue() + t*(b.getBlue() - a.getBlue()));
+            palette[i] = (r << 16) | (g << 8) | bl;
+        }
+        return palette;
+    }
+
+    /**
+     * Add one column with given values of the bands to the history.
+     * The history is cleared, when the size of the area changes.
+     *
+     * @param values values of the bands from the interval [0,100], null for the silence
+     * @param count number of the bands
+     * @param width width of the shown area
+     * @param height height of the shown area
+     */
+    public void addColumn(float[] values, int count, int width, int height) {
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            head = 0;
+            bands = -1;
+        }
+        if (bands != count) {
+            // Lowest band on the bottom row
+            rowBands = new int[height];
+            for (int y=0; y < height; y++) {
+                rowBands[y] = (int)((long)(height - 1 - y) * count / height);
+            }
+            bands = count;
+        }
+        int n = values == null ? 0 : Math.min(count, values.length);
+        for (int y=0, p=head; y < height; y++, p += width) {
+            int band = rowBands[y];
+            float value = band < n ? values[band] : 0;
+            int index = (int)(value * (PALETTE_SIZE - 1) / 100);
+            pixels[p] = PALETTE[Math.max(0, Math.min(PALETTE_SIZE - 1, index))];
+        }
+        head = (head + 1) % width;
+    }
+
+    /**
+     * Paint the history, the newest column on the right side.
+     *
+     * @param g where the history should be painted
+     */
+    public void paint(Graphics g) {
+        if (image == null) {
+            return;
+        }
+        int w = image.getWidth(), height = image.getHeight();
+        // Columns from the head are the oldest ones
+        g.drawImage(image, 0, 0, w - head, height, head, 0, w, height, null);
+        if (head > 0) {
+            g.drawImage(image, w - head, 0, w, height, 0, 0, head, height, null);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+
+package com.kappa.fplayer.graphics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hand-over of the spectrum frames from one producer thread to one consumer
+ * thread through three float buffers. The producer fills its back buffer
+ * and swaps it with the middle one, the consumer swaps its front buffer with
+ * the middle one, when a new frame was published there. Neither of them ever
+ * waits for the other one, nothing is locked or allocated per frame, and
+ * the consumer always reads a whole frame, the latest published one.
+ *
+ * <p>Every published frame is stamped with a sequence number, so the consumer
+ * can tell, whether the frame is new.
+ *
+ * @author Vojtech Vasek
+ */
+public class SpectrumExchange {
+
+    private static final int    NEW = 4;    // Flag of the middle index, set when it holds an unread frame
+
+    private final float[][]     buffers;
+    private final long[]        sequences;  // Sequence numbers of the frames in the buffers
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int                 back = 0;   // Owned by the producer
+    private int                 front = 2;  // Owned by the consumer
+    private long                sequence;   // Last published sequence number
+
+    /**
+     * Create exchange of frames of given length, filled with zeros.
+     *
+     * @param length number of values in one frame
+     */
+    public SpectrumExchange(int length) {
+        buffers = new float[3][length];
+        sequences = new long[3];
+    }
+
+    /**
+     * Return number of values in one frame.
+     *
+     * @return length of the frames
+     */
+    public int getLength() {
+        return buffers[0].length;
+    }
+
+    /**
+     * Return the buffer, which should be filled by the producer with the next
+     * frame. It must not be touched after the frame is published.
+     *
+     * @return back buffer
+     */
+    public float[] getBackBuffer() {
+        return buffers[back];
+    }
+
+    /**
+     * Publish the frame written into the back buffer, called by the producer.
+     * Frame published before, which was not read yet, is dropped.
+     */
+    public void publish() {
+        sequences[back] = ++sequence;
+        back = middle.getAndSet(back | NEW) & ~NEW;
+    }
+
+    /**
+     * Return the latest published frame, called by the consumer.
+     * The frame stays valid until this method is called again.
+     *
+     * @return front buffer with the latest frame
+     */
+    public float[] latest() {
+        if ((middle.get() & NEW) != 0) {
+            front = middle.getAndSet(front) & ~NEW;
+        }
+        return buffers[front];
+    }
+
+    /**
+     * Return sequence number of the frame returned by the last call of {@link #latest()}.
+     *
+     * @return sequence number, 0 if nothing was published yet
+     */
+    public long getSequence() {
+        return sequences[front];
+    }
+}
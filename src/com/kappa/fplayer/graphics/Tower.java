@@ -29,7 +29,6 @@ public class Tower {
     public static final int DEFAULT_SLABS_NUMBER    = 42;
     public static final int DEFAULT_X_PADDING       = 2;
     public static final int DEFAULT_Y_PADDING       = 2;
-    public static final int DEFAULT_CAP_DELAY       = 12;
     public static final Style DEFAULT_TOWER_STYLE   = Style.slabs;
     
     private final int   slabsNum;
@@ -37,10 +36,8 @@ public class Tower {
     private final Band  band;
     private final Style towerStyle;
     
-    private int     capSlabPosition;    // Position of the recent max showed value
-    private int     capSlabWaitTime;    // How much time the cap should wait until it can fall down
-    
     private double  value;      // Value from interval [0,100], percentage of visible slabs
+    private double  peak;       // Value of the cap, the recent max showed value
     private String  label;      // Label showed on the bottom of this tower
     FontMetrics     labelFM;    // Font style for the 'label' text
 
@@ -80,6 +77,7 @@ public class Tower {
     /**
      * Paint this tower onto Graphics2D object, take 'x' and 'y' as an origin,
      * and 'width' and 'height' as a space, where the tower can be painted.
+     * The tower is only painted, its value and cap are animated by {@link TowerField}.
      * 
      * @param g where this tower should be painted
      * @param backgroundColor desired color of the background
@@ -115,21 +113,11 @@ public class Tower {
                     g.setColor(Color.getHSBColor((120.0F - cilinderPos*120.0F) / 360.0F, 1.0F, 1.0F));
 
                     g.fillRoundRect(x + xpadding, y + height - (int)(i*slabHDiff), slabWidth, (int)slabHeight, 3, 3);
-
-                    // Is it time to raise the recent top value (the cap)?
-                    if (i >= capSlabPosition) {
-                        capSlabPosition = i;
-                        capSlabWaitTime = DEFAULT_CAP_DELAY;
-                    }
                 }
                 break;
         }
         // Draw the cap on top
-        if (capSlabWaitTime == 0 && capSlabPosition > 0) {
-            capSlabPosition--;
-        } else if (capSlabWaitTime > 0) {
-            capSlabWaitTime--;
-        }
+        int capSlabPosition = Math.max(getVisibleSlabs(slabsNum, peak), getVisibleSlabs());
         g.setColor(Color.getHSBColor((120.0F - 1.0f/slabsNum*(capSlabPosition + 12)*120.0F) / 360.0F, 1.0F, 1.0F));
         g.fill3DRect(x + xpadding, y + height - (int)(capSlabPosition * slabHDiff), slabWidth, (int)slabHeight, true);
         
@@ -170,6 +158,24 @@ public class Tower {
     public int getSlabsNum() {
         return slabsNum;
     }
+
+    /**
+     * Return padding from the left and right side of the painted area.
+     * 
+     * @return horizontal padding in pixels
+     */
+    public int getXPadding() {
+        return xpadding;
+    }
+
+    /**
+     * Return padding from the top and bottom side of every slab.
+     * 
+     * @return vertical padding in pixels
+     */
+    public int getYPadding() {
+        return ypadding;
+    }
     
     /**
      * Returns label which was set, or 'value' as a String if label is null.
@@ -250,6 +256,26 @@ public class Tower {
         }
     }
 
+    /**
+     * Return current value of the cap, i.e. percentage of the height,
+     * where the recent max showed value is.
+     * 
+     * @return current value of the cap (from interval [0,100])
+     */
+    public double getPeak() {
+        return peak;
+    }
+
+    /**
+     * Set value of the cap.
+     * If the value is not in allowed bounds, it's changed to fulfill them.
+     * 
+     * @param peak new value of the cap
+     */
+    public void setPeak(double peak) {
+        this.peak = Math.min(100, Math.max(0, peak));
+    }
+
     /**
      * Return true, if this tower is at zero position, i.e. it's not
      * visible, i.e. all parts falled down.
@@ -257,7 +283,7 @@ public class Tower {
      * @return true if tower is active
      */
     public boolean isZero() {
-        return capSlabPosition <= 0;
+        return getVisibleSlabs(slabsNum, peak) <= 0;
     }
 
     /**
@@ -0,0 +1,170 @@
+
+package com.kappa.fplayer.graphics;
+
+/**
+ * Animated state of all the towers, kept in parallel primitive arrays.
+ * Every tower has its level, which follows the published value of its band,
+ * and its peak (the cap), which stays on the highest recent level for a while
+ * and then falls down.
+ *
+ * <p>The state is advanced by the time elapsed since the previous frame,
+ * so the animation runs at the same speed for any frame rate and any size
+ * of the audio buffers. Levels rise exponentially with the attack time
+ * and fall linearly with the release time per decibel. Values are
+ * percentages of the height of the tower, see {@link Tower#getValue()},
+ * one decibel is {@link Animator#DEFAULT_SCALE_FACTOR} of them.
+ *
+ * @author Vojtech Vasek
+ */
+public class TowerField {
+
+    /**
+     * Default time constant of the rise of a level in ms.
+     */
+    public static final double  DEFAULT_ATTACK_MILLIS = 10;
+    /**
+     * Default time, in which a level falls by one decibel, in ms.
+     */
+    public static final double  DEFAULT_RELEASE_MILLIS_PER_DB = 12;
+    /**
+     * Default time, for which a peak stays on its place, in ms.
+     */
+    public static final double  DEFAULT_PEAK_HOLD_MILLIS = 400;
+    /**
+     * Default time, in which a peak falls by one decibel, in ms.
+     */
+    public static final double  DEFAULT_PEAK_RELEASE_MILLIS_PER_DB = 25;
+
+    private final float[]   levels;     // Current values of the towers
+    private final float[]   peaks;      // Current values of the caps
+    private final long[]    holds;      // Remaining time of holding the caps in ns
+    private final double    scale;      // Values per decibel
+
+    private double  attackNanos;
+    private double  releaseNanosPerValue;
+    private long    holdNanos;
+    private double  peakReleaseNanosPerValue;
+
+    /**
+     * Create field of given number of fallen towers with default timing.
+     *
+     * @param size number of the towers
+     * @param scale number of values per one decibel
+     */
+    public TowerField(int size, double scale) {
+        levels = new float[size];
+        peaks = new float[size];
+        holds = new long[size];
+        this.scale = scale;
+        setAttack(DEFAULT_ATTACK_MILLIS);
+        setRelease(DEFAULT_RELEASE_MILLIS_PER_DB);
+        setPeakHold(DEFAULT_PEAK_HOLD_MILLIS, DEFAULT_PEAK_RELEASE_MILLIS_PER_DB);
+    }
+
+    /**
+     * Set how quickly the levels rise.
+     *
+     * @param millis time constant of the rise in ms, 0 for immediate rise
+     */
+    public void setAttack(double millis) {
+        attackNanos = Math.max(0, millis) * 1e6;
+    }
+
+    /**
+     * Set how quickly the levels fall.
+     *
+     * @param millisPerDb time of a fall by one decibel in ms
+     */
+    public void setRelease(double millisPerDb) {
+        releaseNanosPerValue = Math.max(0, millisPerDb) * 1e6 / scale;
+    }
+
+    /**
+     * Set how long the peaks stay and how quickly they fall afterwards.
+     *
+     * @param holdMillis time of holding the peak in ms
+     * @param millisPerDb time of a fall by one decibel in ms
+     */
+    public void setPeakHold(double holdMillis, double millisPerDb) {
+        holdNanos = (long)(Math.max(0, holdMillis) * 1e6);
+        peakReleaseNanosPerValue = Math.max(0, millisPerDb) * 1e6 / scale;
+    }
+
+    /**
+     * Move all the levels and peaks towards given values.
+     *
+     * @param values target values of the towers, null to let all of them fall down
+     * @param nanos time elapsed since the previous call in ns
+     */
+    public void advance(float[] values, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        float rise = attackNanos == 0 ? 1 : (float)(1 - Math.exp(-nanos / attackNanos));
+        float fall = releaseNanosPerValue == 0 ? 100 : (float)(nanos / releaseNanosPerValue);
+        float peakFall = peakReleaseNanosPerValue == 0 ? 100 : (float)(nanos / peakReleaseNanosPerValue);
+        int n = values == null ? 0 : Math.min(levels.length, values.length);
+        for (int i=0; i < levels.length; i++) {
+            float target = i < n ? Math.min(100, Math.max(0, values[i])) : 0;
+            float level = levels[i];
+            if (target > level) {
+                level += (target - level) * rise;
+            } else {
+                level = Math.max(target, level - fall);
+            }
+            levels[i] = level;
+
+            if (level >= peaks[i]) {
+                peaks[i] = level;
+                holds[i] = holdNanos;
+            } else if (holds[i] > 0) {
+                holds[i] -= nanos;
+            } else {
+                peaks[i] = Math.max(level, peaks[i] - peakFall);
+            }
+        }
+    }
+
+    /**
+     * Return number of the towers.
+     *
+     * @return size of the field
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * Return current value of given tower.
+     *
+     * @param i index of the tower
+     * @return value from interval [0,100]
+     */
+    public float getLevel(int i) {
+        return levels[i];
+    }
+
+    /**
+     * Return current value of the cap of given tower.
+     *
+     * @param i index of the tower
+     * @return value from interval [0,100]
+     */
+    public float getPeak(int i) {
+        return peaks[i];
+    }
+
+    /**
+     * Return true, if all the towers and their caps fell down.
+     *
+     * @return true if nothing is visible
+     */
+    public boolean isZero() {
+        for (int i=0; i < peaks.length; i++) {
+            if (peaks[i] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
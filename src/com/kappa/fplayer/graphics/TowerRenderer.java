@@ -0,0 +1,192 @@
+
+package com.kappa.fplayer.graphics;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+/**
+ * Painter of the towers, which keeps the painted frame between the frames
+ * and repaints only the slabs, which changed since the previous frame.
+ *
+ * <p>Everything, what does not move, is painted only once per resize into
+ * images compatible with the screen: the background, a column of all lit
+ * slabs with their colors, a column of caps on every position and the labels.
+ * Changed slabs of a tower are then copied from these images by a few blits,
+ * no slab is painted again. Towers are painted the same way as by
+ * {@link Tower#render(Graphics2D, Color, int, int, int, int)} in the slabs style.
+ *
+ * @author Vojtech Vasek
+ */
+public class TowerRenderer {
+
+    private final Color     backgroundColor;
+
+    private BufferedImage   frame;      // Painted state of all the towers
+    private BufferedImage   background; // Frame with all the towers fallen, without labels
+    private BufferedImage   column;     // One tower with all the slabs lit
+    private BufferedImage   caps;       // One tower with a cap on every position
+    private BufferedImage   labels;     // Labels of all the towers on transparent bottom strip
+    private int             labelsY;    // Position of the top of the labels strip
+    private Tower[]         towers;     // Towers, for which the images are prepared
+    private int[]           visible;    // Number of painted lit slabs of every tower
+    private int[]           capped;     // Painted position of the cap of every tower
+    private int             slabsNum, slabHeight, slabHDiff;
+
+    /**
+     * Create renderer painting on given background.
+     *
+     * @param backgroundColor desired color of the background
+     */
+    public TowerRenderer(Color backgroundColor) {
+        this.backgroundColor = backgroundColor;
+    }
+
+    /**
+     * Bring the frame up to the current state of the towers. The images are
+     * prepared again, when the size of the frame or the towers changed.
+     *
+     * @param gc configuration of the device, where the frame will be shown
+     * @param ts towers to be painted, all of them with the same number of slabs and paddings
+     * @param width width of the frame
+     * @param height height of the frame
+     * @return painted frame, valid until the next call
+     */
+    public BufferedImage render(GraphicsConfiguration gc, Tower[] ts, int width, int height) {
+        if (frame == null || frame.getWidth() != width || frame.getHeight() != height || towers != ts) {
+            prepare(gc, ts, width, height);
+        }
+        if (ts.length == 0 || slabHeight <= 0) {
+            return frame;
+        }
+        int towerWidth = (int)((float)width/ts.length);
+        Graphics2D g = frame.createGraphics();
+        try {
+            for (int i=0; i < ts.length; i++) {
+                int v = ts[i].getVisibleSlabs();
+                int c = Math.max(Tower.getVisibleSlabs(slabsNum, ts[i].getPeak()), v);
+                if (v == visible[i] && c == capped[i]) {
+                    continue;
+                }
+                // Slabs between the old and new top and both positions of the cap changed
+                int from = Math.max(1, Math.min(Math.min(v, visible[i]) + 1, Math.min(c, capped[i])));
+                int to = Math.max(Math.max(v, visible[i]), Math.max(c, capped[i]));
+                paintSlabs(g, (int)(i*(float)width/ts.length), towerWidth, height, from, to, v, c);
+                visible[i] = v;
+                capped[i] = c;
+            }
+        } finally {
+            g.dispose();
+        }
+        return frame;
+    }
+
+    /**
+     * Repaint given range of slabs of one tower by copying them from the prepared images.
+     *
+     * @param g graphics of the frame
+     * @param x left side of the tower
+     * @param width width of the tower
+     * @param height height of the frame
+     * @param from lowest repainted slab, counted from 1
+     * @param to highest repainted slab
+     * @param v number of lit slabs
+     * @param c position of the cap
+     */
+    private void paintSlabs(Graphics2D g, int x, int width, int height, int from, int to, int v, int c) {
+        int top = Math.max(0, height - to*slabHDiff);
+        int bottom = height - (from - 1)*slabHDiff;
+        if (top >= bottom) {
+            return;
+        }
+        g.drawImage(background, x, top, x + width, bottom, x, top, x + width, bottom, null);
+        if (v >= from) {
+            int litTop = Math.max(top, height - Math.min(v, to)*slabHDiff);
+            g.drawImage(column, x, litTop, x + width, bottom, 0, litTop, width, bottom, null);
+        }
+        if (c > 0 && c >= from && c <= to) {
+            int capTop = height - c*slabHDiff;
+            int capBottom = capTop + slabHDiff;
+            g.drawImage(caps, x, capTop, x + width, capBottom, 0, capTop, width, capBottom, null);
+        }
+        // Labels are above the slabs
+        int labelTop = Math.max(top, labelsY);
+        if (labelTop < bottom) {
+            g.drawImage(labels, x, labelTop, x + width, bottom, x, labelTop - labelsY, x + width, bottom - labelsY, null);
+        }
+    }
+
+    /**
+     * Paint the images, which do not change until the next resize.
+     *
+     * @param gc configuration of the device, where the frame will be shown
+     * @param ts towers to be painted
+     * @param width width of the frame
+     * @param height height of the frame
+     */
+    private void prepare(GraphicsConfiguration gc, Tower[] ts, int width, int height) {
+        towers = ts;
+        visible = new int[ts.length];
+        capped = new int[ts.length];
+        frame = gc.createCompatibleImage(width, height);
+        background = gc.createCompatibleImage(width, height);
+        Graphics2D g = background.createGraphics();
+        g.setColor(backgroundColor);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+
+        int towerWidth = ts.length == 0 ? 0 : (int)((float)width/ts.length);
+        slabsNum = ts.length == 0 ? 0 : ts[0].getSlabsNum();
+        int xpadding = ts.length == 0 ? 0 : ts[0].getXPadding();
+        int ypadding = ts.length == 0 ? 0 : ts[0].getYPadding();
+        slabHeight = slabsNum == 0 ? 0 : (height - 2*slabsNum*ypadding) / slabsNum;
+        slabHDiff = slabHeight + 2*ypadding;
+        int slabWidth = towerWidth - 2*xpadding;
+
+        // Lit slabs and caps of one tower, colors are the same for all of them
+        column = gc.createCompatibleImage(Math.max(1, towerWidth), height);
+        caps = gc.createCompatibleImage(Math.max(1, towerWidth), height);
+        Graphics2D gl = column.createGraphics();
+        Graphics2D gcap = caps.createGraphics();
+        gl.setColor(backgroundColor);
+        gl.fillRect(0, 0, towerWidth, height);
+        gcap.setColor(backgroundColor);
+        gcap.fillRect(0, 0, towerWidth, height);
+        for (int i=1; i <= slabsNum && slabHeight > 0; i++) {
+            float cilinderPos = (float)i / slabsNum;
+            gl.setColor(Color.getHSBColor((120.0F - cilinderPos*120.0F) / 360.0F, 1.0F, 1.0F));
+            gl.fillRoundRect(xpadding, height - i*slabHDiff, slabWidth, slabHeight, 3, 3);
+            gcap.setColor(Color.getHSBColor((120.0F - 1.0f/slabsNum*(i + 12)*120.0F) / 360.0F, 1.0F, 1.0F));
+            gcap.fill3DRect(xpadding, height - i*slabHDiff, slabWidth, slabHeight, true);
+        }
+        gl.dispose();
+        gcap.dispose();
+
+        // Labels on the bottom of the towers
+        g = frame.createGraphics();
+        g.setFont(new Font("arial", Font.PLAIN, 8));
+        FontMetrics fm = g.getFontMetrics();
+        g.dispose();
+        int baseline = height - ypadding - slabHeight/2;
+        labelsY = Math.max(0, Math.min(height - 1, baseline - fm.getAscent()));
+        labels = gc.createCompatibleImage(width, height - labelsY, Transparency.TRANSLUCENT);
+        g = labels.createGraphics();
+        g.setFont(fm.getFont());
+        g.setColor(Color.BLACK);
+        for (int i=0; i < ts.length; i++) {
+            String label = ts[i].toString();
+            int x = (int)(i*(float)width/ts.length);
+            g.drawString(label, x + xpadding + (slabWidth - fm.stringWidth(label))/2, baseline - labelsY);
+        }
+        g.dispose();
+
+        g = frame.createGraphics();
+        g.drawImage(background, 0, 0, null);
+        g.drawImage(labels, 0, labelsY, null);
+        g.dispose();
+    }
+}
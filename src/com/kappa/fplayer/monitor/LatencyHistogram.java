@@ -0,0 +1,242 @@
+
+package com.kappa.fplayer.monitor;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with fixed buckets, cheap enough to be recorded
+ * for every processed chunk. Every power of two is split into
+ * {@link #SUB_BUCKETS} buckets, so every value is known with the precision
+ * of 1/8 of itself, from 1 ns up to about 18 minutes. Recording only
+ * increments a counter of its bucket, nothing is allocated or locked.
+ *
+ * @author Vojtech Vasek
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets of every power of two.
+     */
+    public static final int     SUB_BUCKETS = 8;
+    private static final int    SUB_BITS = 3;
+    private static final int    MAX_EXPONENT = 40;
+
+    private final String        name;
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+    private final AtomicLong    sum = new AtomicLong();
+    private final AtomicLong    max = new AtomicLong();
+
+    /**
+     * Statistics of the histogram at one moment, in microseconds.
+     */
+    public static class Summary {
+
+        private final long      count;
+        private final double    mean;
+        private final double    median;
+        private final double    p99;
+        private final double    max;
+
+        /**
+         * Create statistics.
+         *
+         * @param count number of recorded values
+         * @param mean mean value
+         * @param median median value
+         * @param p99 99th percentile
+         * @param max maximal value
+         */
+        @ConstructorProperties({"count", "mean", "median", "p99", "max"})
+        public Summary(long count, double mean, double median, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        /**
+         * Return number of recorded values.
+         *
+         * @return count of the values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Return mean value.
+         *
+         * @return mean in microseconds
+         */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * Return median value.
+         *
+         * @return upper bound of the median bucket in microseconds
+         */
+        public double getMedian() {
+            return median;
+        }
+
+        /**
+         * Return 99th percentile.
+         *
+         * @return upper bound of the percentile bucket in microseconds
+         */
+        public double getP99() {
+            return p99;
+        }
+
+        /**
+         * Return maximal value.
+         *
+         * @return maximum in microseconds
+         */
+        public double getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Create empty histogram.
+     *
+     * @param name name of the measured stage
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return name of the measured stage.
+     *
+     * @return name of the histogram
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return number of buckets.
+     *
+     * @return length of the arrays filled by {@link #copyCounts(long[])}
+     */
+    public int getBucketCount() {
+        return counts.length();
+    }
+
+    /**
+     * Record one duration.
+     *
+     * @param nanos duration in nanoseconds, negative values are taken as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        sum.addAndGet(value);
+        long prev;
+        while (value > (prev = max.get()) && !max.compareAndSet(prev, value)) {
+            // Another thread raised the maximum meanwhile, compare again
+        }
+    }
+
+    /**
+     * Return bucket of given value.
+     *
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    private int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Return the highest value of given bucket.
+     *
+     * @param bucket index of the bucket
+     * @return upper bound of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Copy counters of all buckets.
+     *
+     * @param into array of {@link #getBucketCount()} values
+     */
+    public void copyCounts(long[] into) {
+        for (int i=0; i < into.length; i++) {
+            into[i] = counts.get(i);
+        }
+    }
+
+    /**
+     * Return value, under which given part of the recorded values lies.
+     *
+     * @param counts counters of the buckets, e.g. a difference of two copies
+     * @param fraction part of the values, from 0 to 1
+     * @return upper bound of the bucket with the percentile in nanoseconds, 0 if nothing was recorded
+     */
+    public static long percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        long wanted = (long)Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i=0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return statistics of everything recorded so far.
+     *
+     * @return current statistics
+     */
+    public Summary summary() {
+        long[] copy = new long[counts.length()];
+        copyCounts(copy);
+        long count = 0;
+        for (long c : copy) {
+            count += c;
+        }
+        // Upper bound of a bucket can be above the real maximum
+        long highest = max.get();
+        return new Summary(count, count == 0 ? 0 : sum.get() / 1e3 / count,
+                Math.min(percentile(copy, 0.5), highest) / 1e3,
+                Math.min(percentile(copy, 0.99), highest) / 1e3, highest / 1e3);
+    }
+
+    /**
+     * Forget all recorded values.
+     */
+    public void reset() {
+        for (int i=0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+}
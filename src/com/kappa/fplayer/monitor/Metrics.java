@@ -0,0 +1,162 @@
+
+package com.kappa.fplayer.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Durations of the stages of the playback and counters of its problems, shared
+ * by the whole program. Every stage records its duration into its histogram,
+ * which costs two reads of the clock and one atomic increment.
+ *
+ * <p>The metrics are published as the MXBean {@link #OBJECT_NAME}, e.g. for JConsole.
+ * If the system property <code>fplayer.metrics.log</code> is set to a number
+ * of seconds, one line with the median, 99th percentile and maximum of every
+ * stage in the last period is printed to the standard error output
+ * after every period.
+ *
+ * @author Vojtech Vasek
+ */
+public final class Metrics implements MetricsMXBean {
+
+    /**
+     * Name of the registered MXBean.
+     */
+    public static final String  OBJECT_NAME = "com.kappa.fplayer:type=Metrics";
+
+    public static final LatencyHistogram    DECODE          = new LatencyHistogram("decode");
+    public static final LatencyHistogram    LINE_WRITE      = new LatencyHistogram("write");
+    public static final LatencyHistogram    TRANSFORM       = new LatencyHistogram("transform");
+    public static final LatencyHistogram    BAND_REDUCE     = new LatencyHistogram("bands");
+    public static final LatencyHistogram    TOWER_RENDER    = new LatencyHistogram("render");
+    public static final LatencyHistogram    REPAINT         = new LatencyHistogram("repaint");
+    public static final AtomicLong          UNDERRUNS       = new AtomicLong();
+    public static final AtomicLong          DROPPED_FRAMES  = new AtomicLong();
+
+    private static final LatencyHistogram[] STAGES = {DECODE, LINE_WRITE, TRANSFORM, BAND_REDUCE, TOWER_RENDER, REPAINT};
+    private static boolean  registered;
+
+    private Metrics() {
+    }
+
+    /**
+     * Register the MXBean and start the periodic log, if it is enabled.
+     * Only the first call does anything.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            System.err.println("Metrics: can't register "+OBJECT_NAME+": "+ex);
+        }
+
+        long period = Long.getLong("fplayer.metrics.log", 0);
+        if (period > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread t = new Thread(r, "Metrics log");
+                t.setDaemon(true);
+                return t;
+            });
+            logger.scheduleAtFixedRate(new Logger(), period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Periodic log of the last period.
+     */
+    private static class Logger implements Runnable {
+
+        private final long[][]  last = new long[STAGES.length][];
+        private final long[]    counts = new long[DECODE.getBucketCount()];
+        private long            lastUnderruns, lastDropped;
+
+        @Override
+        public void run() {
+            StringBuilder sb = new StringBuilder("Metrics:");
+            for (int s=0; s < STAGES.length; s++) {
+                STAGES[s].copyCounts(counts);
+                if (last[s] == null) {
+                    last[s] = new long[counts.length];
+                }
+                long count = 0;
+                for (int i=0; i < counts.length; i++) {
+                    long now = counts[i];
+                    // Counters smaller than before were reset meanwhile
+                    counts[i] = now >= last[s][i] ? now - last[s][i] : now;
+                    last[s][i] = now;
+                    count += counts[i];
+                }
+                sb.append(String.format(Locale.ROOT, " %s %d/%d/%d us (%d),", STAGES[s].getName(),
+                        LatencyHistogram.percentile(counts, 0.5) / 1000,
+                        LatencyHistogram.percentile(counts, 0.99) / 1000,
+                        LatencyHistogram.percentile(counts, 1) / 1000, count));
+            }
+            long underruns = UNDERRUNS.get(), dropped = DROPPED_FRAMES.get();
+            sb.append(" underruns ").append(underruns - lastUnderruns);
+            sb.append(", dropped ").append(dropped - lastDropped);
+            lastUnderruns = underruns;
+            lastDropped = dropped;
+            System.err.println(sb);
+        }
+    }
+
+    @Override
+    public LatencyHistogram.Summary getDecode() {
+        return DECODE.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getLineWrite() {
+        return LINE_WRITE.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTransform() {
+        return TRANSFORM.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getBandReduce() {
+        return BAND_REDUCE.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTowerRender() {
+        return TOWER_RENDER.summary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getRepaint() {
+        return REPAINT.summary();
+    }
+
+    @Override
+    public long getUnderruns() {
+        return UNDERRUNS.get();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return DROPPED_FRAMES.get();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram stage : STAGES) {
+            stage.reset();
+        }
+        UNDERRUNS.set(0);
+        DROPPED_FRAMES.set(0);
+    }
+
+}
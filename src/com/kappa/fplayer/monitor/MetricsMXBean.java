@@ -0,0 +1,72 @@
+
+package com.kappa.fplayer.monitor;
+
+/**
+ * Management interface of the {@link Metrics}, durations are in microseconds.
+ *
+ * @author Vojtech Vasek
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Return statistics of reading the decoded audio data.
+     *
+     * @return statistics of the decoding stage
+     */
+    LatencyHistogram.Summary getDecode();
+
+    /**
+     * Return statistics of writing to the audio line.
+     *
+     * @return statistics of the line writes
+     */
+    LatencyHistogram.Summary getLineWrite();
+
+    /**
+     * Return statistics of the short-time Fourier transform.
+     *
+     * @return statistics of the transform
+     */
+    LatencyHistogram.Summary getTransform();
+
+    /**
+     * Return statistics of reducing the spectrum into the bands.
+     *
+     * @return statistics of the band reduction
+     */
+    LatencyHistogram.Summary getBandReduce();
+
+    /**
+     * Return statistics of rendering the towers into the image.
+     *
+     * @return statistics of the rendering
+     */
+    LatencyHistogram.Summary getTowerRender();
+
+    /**
+     * Return statistics of painting the image on the screen.
+     *
+     * @return statistics of the repaints
+     */
+    LatencyHistogram.Summary getRepaint();
+
+    /**
+     * Return how many times the audio line ran out of data.
+     *
+     * @return number of underruns
+     */
+    long getUnderruns();
+
+    /**
+     * Return number of chunks played, but not analysed.
+     *
+     * @return number of dropped chunks
+     */
+    long getDroppedFrames();
+
+    /**
+     * Forget all statistics.
+     */
+    void reset();
+
+}
@@ -0,0 +1,109 @@
+
+package com.kappa.fplayer.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times of the important moments of the program start, measured from the start
+ * of the main method: when the window is shown, when the first audio data are
+ * decoded and when they are written to the speakers. Only the first occurrence
+ * of every moment is recorded.
+ *
+ * <p>The moments are printed to the standard error output, when the program
+ * is started with --timeline or with the system property <code>fplayer.timeline</code>.
+ *
+ * @author Vojtech Vasek
+ */
+public final class StartupTimeline {
+
+    /**
+     * The main window is visible.
+     */
+    public static final String  FRAME_SHOWN     = "frame shown";
+    /**
+     * The first chunk of the audio data is decoded.
+     */
+    public static final String  FIRST_DECODE    = "first decode";
+    /**
+     * The first chunk of the audio data is written to the speakers.
+     */
+    public static final String  FIRST_AUDIO     = "first audio";
+
+    private static final Map<String, Long> MARKS = new ConcurrentHashMap<>();
+    private static volatile long    origin = System.nanoTime();
+    private static volatile boolean enabled = Boolean.getBoolean("fplayer.timeline");
+
+    private StartupTimeline() {
+    }
+
+    /**
+     * Start measuring the time, called at the start of the main method.
+     */
+    public static void start() {
+        origin = System.nanoTime();
+        MARKS.clear();
+        if (enabled) {
+            print();
+        }
+    }
+
+    /**
+     * Set whether the moments are printed.
+     *
+     * @param enabled true to print the moments as they occur
+     */
+    public static void setEnabled(boolean enabled) {
+        boolean print = enabled && !StartupTimeline.enabled;
+        StartupTimeline.enabled = enabled;
+        if (print) {
+            print();
+        }
+    }
+
+    /**
+     * Return whether the moments are printed.
+     *
+     * @return true if the moments are printed as they occur
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Print how long the JVM was starting before the main method.
+     */
+    private static void print() {
+        // Management beans are loaded only when the timeline is printed
+        long jvm = ManagementFactory.getRuntimeMXBean().getUptime()
+                - (System.nanoTime() - origin) / 1000000;
+        System.err.println("StartupTimeline: JVM start to main "+jvm+" ms");
+    }
+
+    /**
+     * Record given moment, if it has not been recorded yet.
+     *
+     * @param event name of the moment
+     */
+    public static void mark(String event) {
+        long now = System.nanoTime();
+        if (MARKS.putIfAbsent(event, now) == null && enabled) {
+            System.err.println(String.format(Locale.ROOT, "StartupTimeline: %s +%.1f ms",
+                    event, (now - origin) / 1e6));
+        }
+    }
+
+    /**
+     * Return time of given moment.
+     *
+     * @param event name of the moment
+     * @return milliseconds from the start of the main method, -1 if the moment has not occurred yet
+     */
+    public static double millis(String event) {
+        Long time = MARKS.get(event);
+        return time == null ? -1 : (time - origin) / 1e6;
+    }
+
+}
@@ -1,14 +1,21 @@
 
 package com.kappa.fplayer.sound;
 
-import com.kappa.fplayer.fft.Complex;
-import com.kappa.fplayer.fft.Transform;
+import com.kappa.fplayer.analysis.Analyzer;
+import com.kappa.fplayer.analysis.SpectrumCache;
+import com.kappa.fplayer.analysis.SpectrumFile;
+import com.kappa.fplayer.fft.Stft;
 import com.kappa.fplayer.graphics.Animator;
+import com.kappa.fplayer.monitor.Metrics;
+import com.kappa.fplayer.monitor.StartupTimeline;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
@@ -18,10 +25,18 @@ import javax.swing.JOptionPane;
 
 /**
  * Reader for audio data files.
- * Reads data into buffer, data is transformed into processable form.
+ * Reads data into buffer, data is played and in parallel transformed into processable form.
  * Window function is performed on every data buffer for better transformation
  * (difference can be simply seen by using the rectangular window function instead).
  * After transformation, the data are send to Animator, which will show them in window.
+ * Band levels of files played before are taken from the {@link SpectrumCache}
+ * and the transformation is skipped, their decoded audio data are taken
+ * from the {@link PcmCache}.
+ * 
+ * <p>When the file ends, the files of the {@link Playlist} follow without any
+ * gap on the same audio line. The next file is opened and its beginning decoded
+ * in advance (see {@link Track}), files of a different format are converted
+ * into the format of the line by {@link ConvertingSource}.
  * 
  * <p><a href="http://en.wikipedia.org/wiki/Window_function">On window functions</a>
  * 
@@ -29,11 +44,46 @@ import javax.swing.JOptionPane;
  */
 public class AudioReader extends SoundReader {
 
-    private AudioInputStream    ais;
+    /**
+     * Number of chunks, which can wait for the playback.
+     */
+    public static final int     DEFAULT_PLAYBACK_QUEUE  = 32;
+    /**
+     * Number of chunks, which can wait for the analysis.
+     */
+    public static final int     DEFAULT_ANALYSIS_QUEUE  = 16;
+    /**
+     * The lowest number of chunks decoded in advance.
+     */
+    public static final int     DEFAULT_MIN_READ_AHEAD  = 4;
+    /**
+     * How long should a stage wait, if there is nothing to do.
+     */
+    private static final long   WAIT_NANOS              = 1000000;
+
+    private volatile AudioSource source;        // Current track, converted into the line format if needed
+    private Track               track;
+    private Track               nextTrack;      // Prefetched next file of the playlist
     private SourceDataLine      sdl;
-    private Complex[]           cdata;              
-    private byte[]              rawData;
+    private AudioFormat         lineFormat;
+    private volatile LatencyController latency;
+    private PcmDecoder          decoder;
+    private Stft                stft;
+    private double[]            samples;
+    private double[]            bandLevels;
     private final File          audioFile;
+    private final Playlist      playlist;
+    private volatile Consumer<File> trackListener;
+    
+    private SpscRing<PcmChunk>  playbackQueue;
+    private SpscRing<PcmChunk>  analysisQueue;
+    private volatile boolean    decoding;
+    private volatile boolean    playing;
+    private volatile int        currentGeneration;  // Number of seeks performed by the decoding stage
+    private final AtomicLong    seekFrame = new AtomicLong(-1);
+    private final AtomicBoolean skipRequested = new AtomicBoolean();
+    private final AtomicLong    droppedFrames = new AtomicLong();
+    private final AtomicLong    underruns = new AtomicLong();
     
 
     /**
@@ -44,8 +94,31 @@ public class AudioReader extends SoundReader {
      * @param audioFile audio file, which will be readed
      */
     public AudioReader(Animator animator, File audioFile) {
+        this(animator, audioFile, new Playlist());
+    }
+    
+    /**
+     * Prepare new Sound Reader for reading the input audio file
+     * and the files queued after it.
+     * 
+     * @param animator animator, which will be painting the results
+     * @param audioFile audio file, which will be readed first
+     * @param playlist files, which will be readed after the first one
+     */
+    public AudioReader(Animator animator, File audioFile, Playlist playlist) {
         super(animator);
         this.audioFile = audioFile;
+        this.playlist = playlist;
+    }
+    
+    /**
+     * Set receiver of the files, whose playback has just started.
+     * It is called from the playback thread.
+     * 
+     * @param trackListener receiver of the played files, null for none
+     */
+    public void setTrackListener(Consumer<File> trackListener) {
+        this.trackListener = trackListener;
     }
     
     /**
@@ -73,7 +146,7 @@ public class AudioReader extends SoundReader {
     }
 
     /**
-     * Prepare Audio Input Stream from audio file, which will be able
+     * Prepare audio source of the audio file, which will be able
      * to simply decode and read the audio data.
      * Also prepare Source Data Line, which is the output stream to the speakers.
      * 
@@ -85,33 +158,29 @@ public class AudioReader extends SoundReader {
         if (audioFile == null) {
             throw new FileNotFoundException();
         }
-        AudioInputStream in = AudioSystem.getAudioInputStream(audioFile);
-        AudioFormat sourceAF = in.getFormat();
+        track = new Track(audioFile, this::lookupSpectra);
+        AudioFormat format = track.open();
+        source = track;
 
-        // Desired format of the input stream
-        AudioFormat targetAF = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
-                sourceAF.getSampleRate(), ssib, sourceAF.getChannels(),
-                sourceAF.getChannels() * (ssib / 8), sourceAF.getSampleRate(), false);
-        
-        // Decoded stream in desired format
-        ais = AudioSystem.getAudioInputStream(targetAF, in);
-
-        cdata = new Complex[bufferLength];
-        for (int i=0; i < cdata.length; i++) {
-            cdata[i] = new Complex();
+        // Output stream preparation, the file can be in a format the speakers
+        // do not support (e.g. 24-bit or float PCM), it is converted to 16 bits then
+        DataLine.Info lineInfo = new DataLine.Info(SourceDataLine.class, format, AudioSystem.NOT_SPECIFIED);
+        if (!AudioSystem.isLineSupported(lineInfo)) {
+            source = new ConvertingSource(track, new AudioFormat(format.getSampleRate(),
+                    DEFAULT_SSIB, format.getChannels(), true, false));
+            lineInfo = new DataLine.Info(SourceDataLine.class, source.getFormat(), AudioSystem.NOT_SPECIFIED);
         }
-
-        // Output stream preparation
-        DataLine.Info lineInfo = new DataLine.Info(SourceDataLine.class, ais.getFormat(), AudioSystem.NOT_SPECIFIED);
         if (!AudioSystem.isLineSupported(lineInfo)) {
             System.err.println("AudioReader: "+lineInfo+" not supported!");
             return;
         }
 
         sdl = (SourceDataLine) AudioSystem.getLine(lineInfo);
-        sdl.open(ais.getFormat(), sdl.getBufferSize());
+        sdl.open(source.getFormat(), sdl.getBufferSize());
         
         AudioFormat sdlForm = sdl.getFormat();
+        lineFormat = source.getFormat();
+        latency = new LatencyController(lineFormat, sdl.getBufferSize(), DEFAULT_MIN_READ_AHEAD, DEFAULT_PLAYBACK_QUEUE);
         ssib = sdlForm.getSampleSizeInBits();
         if (ssib == AudioSystem.NOT_SPECIFIED) {
             ssib = DEFAULT_SSIB;
@@ -125,48 +194,176 @@ public class AudioReader extends SoundReader {
             sampleRate = DEFAULT_SAMPLE_RATE;
         }
         frameSize = channelCount * (ssib / 8);
+        decoder = PcmDecoder.forFormat(source.getFormat());
+        
+        // Prepare Animator's data and the analysis for the real sample rate
+        animator.setAudioInfo(bufferLength, sampleRate);
+        stft = createStft();
+        samples = new double[hop];
+        bandLevels = new double[animator.getBandCount()];
+        track.spectra = usableSpectra(track);
+    }
+    
+    /**
+     * Look for the spectra of given file in the spectrum cache. If they
+     * are there, the towers are moved by them instead of the live analysis,
+     * otherwise the spectra are counted in the background for the next time.
+     * Called by the prefetch of the {@link Track}, hashing of the file
+     * must not delay the decoding.
+     * 
+     * @param file played file
+     * @return cached spectra, null if they are not available
+     */
+    private SpectrumFile lookupSpectra(File file) {
+        SpectrumCache cache = SpectrumCache.getDefault();
+        if (!cache.isEnabled()) {
+            return null;
+        }
+        Analyzer settings = new Analyzer();
+        settings.setBufferLength(bufferLength);
+        settings.setHop(hop);
+        settings.setWindowType(windowType);
+        settings.setReduction(animator.getReduction());
+        try {
+            String key = SpectrumCache.key(file, settings);
+            SpectrumFile cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            cache.buildAsync(key, file, settings);
+        } catch (IOException ex) {
+            System.err.println("AudioReader: spectrum cache not available: "+ex);
+        }
+        return null;
+    }
+    
+    /**
+     * Return the spectra found by {@link #lookupSpectra(File)}, if they fit
+     * the played audio and the towers and they cover the whole track.
+     * 
+     * @param t opened track
+     * @return the spectra, null if they can't be used
+     */
+    private SpectrumFile usableSpectra(Track t) {
+        SpectrumFile cached = t.spectra;
+        if (cached == null || cached.getSampleRate() != sampleRate
+                || cached.getBands().length != animator.getBandCount()) {
+            return null;
+        }
+        // Entry of a shorter decoding of the file, e.g. ended by a decoder bug
+        long frames = t.getFrameLength();
+        if (frames >= 0 && cached.getFrameCount() < frames / hop - 1) {
+            return null;
+        }
+        return cached;
     }
 
     /**
      * Take initialized object and start reading from them.
-     * Raw data are transformed into separate double arrays for every channel.
-     * Data from channels are averaged, then window function is performed on them
+     * Playback is split into stages running in their own threads, which are
+     * connected by lock-free queues of data chunks, so that no stage waits for
+     * a slower one behind it:
+     * <ul>
+     * <li>decoding (this thread) -- reads chunks of 'hop' frames from the input
+     * stream into the playback queue, waits only when the read-ahead given
+     * by the {@link LatencyController} is decoded,
+     * continues with the next file of the playlist at the end of the file,
+     * <li>playback -- writes the chunks to the speakers, so that the line holds
+     * just the target latency of the {@link LatencyController}, and passes their
+     * copies to the analysis queue, if that queue is full, the copy is dropped,
+     * <li>analysis -- decodes the chunks into samples and passes them to the short-time
+     * Fourier transform, which performs window function on the last 'bufferLength' samples
      * (FFT is designed for cyclic functions, window function tries to adjust input
-     * function so that it looks cyclic), after that, we perform FFT and the result
-     * is transmitted to Animator. Simultaneously, the data are writed to the
-     * speakers.
+     * function so that it looks cyclic), performs FFT and transmits the result
+     * to Animator. Chunks, which are older than one buffer length, are dropped
+     * instead of being analysed late.
+     * </ul>
      * 
      * @throws IOException
-     * @throws LineUnavailableException 
      */
-    private void playAudio() throws IOException, LineUnavailableException {
-        if (sdl == null || ais == null) {
+    private void playAudio() throws IOException {
+        if (sdl == null || source == null) {
             return;
         }
         
-        // Prepare Animator's data
-        animator.setAudioInfo(bufferLength, sampleRate);
-        // Start reading the input audio
+        int chunkLength = hop * frameSize;
+        playbackQueue = new SpscRing<>(DEFAULT_PLAYBACK_QUEUE, () -> new PcmChunk(chunkLength));
+        analysisQueue = new SpscRing<>(DEFAULT_ANALYSIS_QUEUE, () -> new PcmChunk(chunkLength));
+        droppedFrames.set(0);
+        decoding = true;
+        playing = true;
+        Thread playback = new Thread(this::playbackStage, "AudioReader playback");
+        Thread analysis = new Thread(this::analysisStage, "AudioReader analysis");
+        
+        // Start reading the input audio, the line plays as soon as the first chunk is written
         sdl.start();
-        // Wait a moment before reading, reading right after sdl.start() was causing
-        // troubles with large audio files.
+        playback.start();
+        analysis.start();
         try {
-            Thread.sleep(100);
-        } catch (InterruptedException ex) {
-            System.err.println(ex);
+            decodeStage();
+        } finally {
+            decoding = false;
+            try {
+                playback.join();
+                analysis.join();
+            } catch (InterruptedException ex) {
+                System.err.println("AudioReader: stages interrupted. "+ex);
+            }
         }
         
-        // Init to 1 just to pass the while condition
-        int totalReaded = 1;
-        int totalLen = bufferLength * frameSize;
-        rawData = new byte[totalLen];
-        
-        while (running && totalReaded > 0) {
+        // Stop reading audio and close input channels
+        sdl.drain();
+        sdl.stop();
+        sdl.close();
+        source.close();
+        if (nextTrack != null) {
+            nextTrack.close();
+            nextTrack = null;
+        }
+    }
+    
+    /**
+     * Decoding stage, reads the input stream into the playback queue.
+     * 
+     * @throws IOException 
+     */
+    private void decodeStage() throws IOException {
+        long frame = 0;
+        int generation = 0;
+        while (running) {
+            if (skipRequested.getAndSet(false)) {
+                if (!nextTrack()) {
+                    break;
+                }
+                // Data of the skipped track are thrown away like after a seek
+                seekFrame.set(-1);
+                frame = 0;
+                currentGeneration = ++generation;
+            }
+            long target = seekFrame.getAndSet(-1);
+            if (target >= 0) {
+                source.seek(target);
+                frame = source.getFramePosition();
+                currentGeneration = ++generation;
+            }
+            if (nextTrack == null && playlist.peek() != null) {
+                nextTrack = new Track(playlist.peek(), this::lookupSpectra);
+            }
+            
+            // Read-ahead is limited by the latency controller, not only by the queue
+            PcmChunk chunk = playbackQueue.size() < latency.getReadAhead() ? playbackQueue.claim() : null;
+            if (chunk == null) {
+                LockSupport.parkNanos(WAIT_NANOS);
+                continue;
+            }
+            
+            int totalLen = chunk.data.length;
+            int totalReaded = 0;
+            long start = System.nanoTime();
             try {
                 int left = totalLen;
-                totalReaded = 0;
                 int tmp;
-                while (left > 0 && (tmp = ais.read(rawData, totalLen - left, left)) != -1) {
+                while (left > 0 && (tmp = source.read(chunk.data, totalLen - left, left)) != -1) {
                     left -= tmp;
                     totalReaded += tmp;
                 }
@@ -174,70 +371,334 @@ public class AudioReader extends SoundReader {
                 // One of the known MP3SPI1.9.5 bugs and its recommended solution -- try to read again
                 totalReaded = 0;
             }
-            if (totalReaded > 0) {
-                int left = totalReaded;
-                while (left > 0) {
-                    int tmp = sdl.write(rawData, totalReaded - left, left);
-                    left -= tmp;
+            Metrics.DECODE.record(System.nanoTime() - start);
+            if (totalReaded <= 0) {
+                // End of the track, the next one follows right after its last chunk
+                if (!nextTrack()) {
+                    break;
                 }
-
-                double[] averageData = averageChannels(toChannels(rawData));
-                for (int i = averageData.length - 1; i < cdata.length; i++) {
-                    cdata[i].set(0, 0);
+                frame = 0;
+                continue;
+            }
+            chunk.length = totalReaded;
+            chunk.frame = frame;
+            chunk.generation = generation;
+            chunk.track = track;
+            if (frame == 0 && generation == 0) {
+                StartupTimeline.mark(StartupTimeline.FIRST_DECODE);
+            }
+            frame += totalReaded / frameSize;
+            playbackQueue.publish();
+        }
+    }
+    
+    /**
+     * Close the current track and continue with the next file of the playlist.
+     * Files, which can not be opened, are skipped.
+     * 
+     * @return false if there is no next file
+     * @throws IOException
+     */
+    private boolean nextTrack() throws IOException {
+        File file;
+        while ((file = playlist.poll()) != null) {
+            Track next = nextTrack;
+            nextTrack = null;
+            if (next == null || !next.file.equals(file)) {
+                // The playlist changed after the prefetch
+                if (next != null) {
+                    next.close();
                 }
-                for (int i=0; i < cdata.length; i++) {
-                    cdata[i].setImaginary(0);
-                    cdata[i].setReal(averageData[i]);
+                next = new Track(file, this::lookupSpectra);
+            }
+            AudioSource converted;
+            try {
+                AudioFormat format = next.open();
+                converted = format.matches(lineFormat) ? next : new ConvertingSource(next, lineFormat);
+            } catch (IOException ex) {
+                System.err.println("AudioReader: skipping "+file+": "+ex);
+                continue;
+            } catch (IllegalArgumentException ex) {
+                // Format, which can't be converted to the format of the line
+                System.err.println("AudioReader: skipping "+file+": "+ex.getMessage());
+                next.close();
+                continue;
+            }
+            
+            source.close();
+            track = next;
+            track.spectra = usableSpectra(track);
+            source = converted;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Playback stage, writes the chunks from the playback queue to the speakers
+     * and offers them to the analysis.
+     */
+    private void playbackStage() {
+        int generation = 0;
+        Track played = null;
+        boolean started = false;    // Whether the line got any data since the last flush
+        while (running) {
+            PcmChunk chunk = playbackQueue.peek();
+            if (chunk == null) {
+                if (!decoding) {
+                    break;
                 }
-                Transform.applyWindow(cdata, window);
-                animator.setData(Transform.transform(cdata));
-                try {
-                    animator.updateState();
-                } catch (Exception ex) {
-                    System.err.println(ex);
+                LockSupport.parkNanos(WAIT_NANOS);
+                continue;
+            }
+            
+            // Chunks read before the last seek are thrown away, together with
+            // the data waiting in the line
+            if (chunk.generation != currentGeneration) {
+                playbackQueue.release();
+                continue;
+            }
+            if (chunk.generation != generation) {
+                generation = chunk.generation;
+                sdl.flush();
+                started = false;
+            }
+            boolean first = chunk.track != played;
+            if (first) {
+                played = chunk.track;
+                Consumer<File> listener = trackListener;
+                if (listener != null) {
+                    listener.accept(played.file);
                 }
             }
+            
+            // Line, which has nothing to play, has already gone silent
+            if (started && sdl.available() >= sdl.getBufferSize()) {
+                underruns.incrementAndGet();
+                Metrics.UNDERRUNS.incrementAndGet();
+                latency.underrun();
+                if (latency.needsBiggerLine()) {
+                    growLine();
+                }
+            } else {
+                latency.update();
+            }
+            // Only the target latency waits in the line, the rest waits in the queue
+            int target = latency.getTargetBytes();
+            int queued;
+            while (running && (queued = sdl.getBufferSize() - sdl.available()) > 0
+                    && queued + chunk.length > target) {
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+            long start = System.nanoTime();
+            int left = chunk.length;
+            while (left > 0) {
+                int tmp = sdl.write(chunk.data, chunk.length - left, left);
+                left -= tmp;
+            }
+            Metrics.LINE_WRITE.record(System.nanoTime() - start);
+            started = true;
+            if (first) {
+                StartupTimeline.mark(StartupTimeline.FIRST_AUDIO);
+            }
+            
+            // Analysis must never hold the playback back
+            PcmChunk copy = analysisQueue.claim();
+            if (copy == null) {
+                droppedFrames.incrementAndGet();
+                Metrics.DROPPED_FRAMES.incrementAndGet();
+            } else {
+                System.arraycopy(chunk.data, 0, copy.data, 0, chunk.length);
+                copy.length = chunk.length;
+                copy.frame = chunk.frame;
+                copy.generation = chunk.generation;
+                copy.track = chunk.track;
+                analysisQueue.publish();
+            }
+            playbackQueue.release();
         }
-        // Stop reading audio and close input channels
-        sdl.drain();
+        playing = false;
+    }
+    
+    /**
+     * Open the line again with a twice bigger buffer, because the line runs out
+     * of data even when it is full. Data waiting in the line are lost,
+     * but there is almost nothing after the underrun.
+     */
+    private void growLine() {
+        int old = sdl.getBufferSize();
+        int size = Math.min(2 * old, latency.getMaxLineBytes());
         sdl.stop();
         sdl.close();
-        ais.close();
+        try {
+            sdl.open(lineFormat, size);
+        } catch (LineUnavailableException ex) {
+            System.err.println("AudioReader: can't open line with "+size+" bytes buffer: "+ex);
+            try {
+                sdl.open(lineFormat, old);
+            } catch (LineUnavailableException ex2) {
+                System.err.println("AudioReader: line lost: "+ex2);
+                running = false;
+                return;
+            }
+        }
+        sdl.start();
+        latency.setLineBuffer(sdl.getBufferSize());
     }
-
+    
     /**
-     * From given bytes and audio information, compute domain-based audio values.
-     * The input data array consists of frames, which contains values for all channels in the
-     * current frame/sample of the audio file.
-     * 
-     * @param data readed array of bytes
-     * @return retrieved audio data as double arrays for every channel
+     * Analysis stage, transforms the chunks from the analysis queue and sends
+     * the results to the Animator.
      */
-    private double[][] toChannels(byte[] data) {
-        int sampleSize = 1 << (ssib - 1);
-        // For better performance (multiplication instead of division will be used)
-        double sampleSizeDiv = 1.0 / sampleSize;
-        int frameCount = data.length / frameSize;
-        int channelSize = frameSize / channelCount;
-        
-        double[][] channels = new double[channelCount][frameCount];
-
-        // For all of the input data
-        for (int i = 0, framePos = 0; i < frameCount; i++, framePos += frameSize) {
-            // For every channel
-            for (int channel = 0, channelPos = 0; channel < channelCount; channel++, channelPos += channelSize) {
-                int sampleValue = 0;
-                
-                for (int bytePos = 0, bit = 0; bit < ssib-8; bytePos++, bit += 8) {
-                    sampleValue |= (data[channelPos + framePos + bytePos] & 0xff) << bit;
+    private void analysisStage() {
+        // Chunks older than one buffer length are not worth analysing
+        int maxBacklog = Math.max(1, (bufferLength + hop - 1) / hop);
+        int generation = 0;
+        SpectrumFile spectra = null;
+        while (running) {
+            PcmChunk chunk = analysisQueue.peek();
+            if (chunk == null) {
+                if (!playing) {
+                    break;
                 }
-                sampleValue |= (data[channelPos + framePos + ssib/8 - 1]) << (ssib - 8);
-                
-                // Normalize into [-1,1] -- divide by maximum number that can be represented
-                channels[channel][i] = sampleValue * sampleSizeDiv;
+                LockSupport.parkNanos(WAIT_NANOS);
+                continue;
+            }
+            
+            // Samples from before the seek must not be mixed with the new ones
+            if (chunk.generation != generation) {
+                generation = chunk.generation;
+                stft.reset();
             }
+            // Cached spectra are used as long as they have the row, the transform
+            // continues across the tracks, as the sound does, otherwise
+            SpectrumFile cached = chunk.track.spectra;
+            long row = -1;
+            if (cached != null) {
+                // Row 'i' of the cached spectra ends with the sample (i+1)*hop
+                row = (chunk.frame + chunk.length / frameSize) / hop - 1;
+                if (row >= cached.getFrameCount()) {
+                    cached = null;
+                }
+            }
+            if (cached == null && spectra != null) {
+                // Transform did not get the samples of the cached part
+                stft.reset();
+            }
+            spectra = cached;
+            if (analysisQueue.size() > maxBacklog) {
+                droppedFrames.incrementAndGet();
+                Metrics.DROPPED_FRAMES.incrementAndGet();
+                // Dropped samples leave a gap in the transformed signal
+                stft.reset();
+            } else if (spectra != null) {
+                if (row >= 0) {
+                    spectra.readFrame(row, bandLevels);
+                    try {
+                        animator.updateBands(bandLevels);
+                    } catch (Exception ex) {
+                        System.err.println(ex);
+                    }
+                }
+            } else {
+                int frames = chunk.length / frameSize;
+                decoder.decode(chunk.buffer, 0, frames, samples);
+                stft.push(samples, 0, frames);
+            }
+            analysisQueue.release();
         }
-
-        return channels;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Move the playback to given time. The move is performed by the decoding
+     * stage, data already decoded are thrown away.
+     * 
+     * @param seconds time from the beginning of the file
+     */
+    public void seek(double seconds) {
+        seekFrame.set(Math.max(0, (long)(seconds * sampleRate)));
+    }
+    
+    /**
+     * Skip the rest of the current file and continue with the next file
+     * of the playlist, the playback ends if there is none.
+     */
+    public void skip() {
+        skipRequested.set(true);
+    }
+    
+    /**
+     * Return length of the played file.
+     * 
+     * @return length in seconds, negative if not known
+     */
+    public double getDuration() {
+        AudioSource src = source;
+        if (src == null || src.getFrameLength() < 0) {
+            return -1;
+        }
+        return src.getFrameLength() / (double)sampleRate;
+    }
+    
+    /**
+     * Return number of chunks decoded, but not yet written to the speakers.
+     * 
+     * @return depth of the playback queue
+     */
+    public int getPlaybackQueueDepth() {
+        return playbackQueue == null ? 0 : playbackQueue.size();
+    }
+    
+    /**
+     * Return number of chunks played, but not yet analysed.
+     * 
+     * @return depth of the analysis queue
+     */
+    public int getAnalysisQueueDepth() {
+        return analysisQueue == null ? 0 : analysisQueue.size();
+    }
+    
+    /**
+     * Return number of chunks, which were played, but not analysed,
+     * because the analysis could not keep up.
+     * 
+     * @return number of dropped chunks
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+    
+    /**
+     * Return how much audio is waiting in the line, i.e. the current output latency.
+     * 
+     * @return latency in milliseconds, 0 if nothing is played
+     */
+    public double getLatencyMillis() {
+        LatencyController controller = latency;
+        if (controller == null || !sdl.isOpen()) {
+            return 0;
+        }
+        return controller.toMillis(sdl.getBufferSize() - sdl.available());
+    }
+    
+    /**
+     * Return how much audio should be waiting in the line, the target is raised
+     * after underruns and lowered while the playback is stable.
+     * 
+     * @return target latency in milliseconds, 0 if nothing is played
+     */
+    public double getTargetLatencyMillis() {
+        LatencyController controller = latency;
+        return controller == null ? 0 : controller.getTargetMillis();
+    }
+    
+    /**
+     * Return how many times the line played everything it got
+     * and had to wait for more data.
+     * 
+     * @return number of underruns
+     */
+    public long getUnderruns() {
+        return underruns.get();
+    }
+}
@@ -0,0 +1,98 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Source of raw PCM frames of one audio file.
+ * Data are always in a format, which {@link PcmDecoder} is able to decode.
+ *
+ * @author Vojtech Vasek
+ */
+public interface AudioSource extends Closeable {
+
+    /**
+     * Open the best source for given file. Plain PCM WAV files are mapped
+     * into memory, MP3 files are decoded with the help of their frame index,
+     * any other file is decoded by the Java Sound API.
+     *
+     * @param file audio file
+     * @return opened source
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    static AudioSource open(File file) throws IOException, UnsupportedAudioFileException {
+        if (file.getName().toLowerCase().endsWith(".mp3")) {
+            return new Mp3Source(file);
+        }
+        try {
+            return new MappedWavSource(file);
+        } catch (UnsupportedAudioFileException ex) {
+            // Not a plain PCM WAV file
+            return new StreamAudioSource(file);
+        }
+    }
+
+    /**
+     * Open source for given file, which will be read once from its beginning
+     * to its end. MP3 files are decoded by the Java Sound API, without
+     * the frame index, which is needed only for seeking, so no index is scanned
+     * or stored. Any other file is opened by {@link #open(File)}.
+     *
+     * @param file audio file
+     * @return opened source
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    static AudioSource openSequential(File file) throws IOException, UnsupportedAudioFileException {
+        if (file.getName().toLowerCase().endsWith(".mp3")) {
+            return new StreamAudioSource(file);
+        }
+        return open(file);
+    }
+
+    /**
+     * Return format of the frames read from this source.
+     *
+     * @return format of the data
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Read the following frames into given array. Only whole frames are read.
+     *
+     * @param data where the frames will be stored
+     * @param offset index of the first byte to be written
+     * @param length maximal number of bytes to be read
+     * @return number of bytes read, -1 at the end of the file
+     * @throws IOException
+     */
+    int read(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Move to given frame, the next read starts there.
+     *
+     * @param frame index of the frame from the beginning of the file
+     * @throws IOException
+     */
+    void seek(long frame) throws IOException;
+
+    /**
+     * Return index of the frame, which will be read next.
+     *
+     * @return current position in frames
+     */
+    long getFramePosition();
+
+    /**
+     * Return length of the file.
+     *
+     * @return number of frames, AudioSystem.NOT_SPECIFIED if not known
+     */
+    long getFrameLength();
+
+}
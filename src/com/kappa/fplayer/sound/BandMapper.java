@@ -0,0 +1,146 @@
+
+package com.kappa.fplayer.sound;
+
+import com.kappa.fplayer.fft.Kernels;
+
+/**
+ * Precomputed reduction of the spectrum bins into frequency bands.
+ * For every band the range of bins it covers is found once, together with
+ * the weight of every bin, i.e. part of the band's frequencies that falls into that bin.
+ * Bands narrower than one bin therefore still get the value of the bin they lie in.
+ * Reduction then needs only one pass over the bins of each band and one
+ * logarithm per band.
+ *
+ * @author Vojtech Vasek
+ */
+public class BandMapper {
+
+    /**
+     * How the bins of one band are reduced into one value.
+     * Peak takes the biggest magnitude, RMS the root of weighted mean power
+     * and average the weighted mean magnitude.
+     */
+    public static enum Mode {
+        peak, rms, average;
+    }
+
+    private final int       bins;       // Number of bins of the spectrum
+    private final int[]     binStart;   // First bin of every band
+    private final int[]     offsets;    // Index of the first weight of every band, one more for the end
+    private final double[]  weights;    // Weights of the bins of all bands
+
+    /**
+     * Count bin ranges and weights of given bands.
+     * Frequency 'f' falls into the bin f*bufferLength/sampleRate, bins above
+     * the Nyquist frequency are mapped to the last one.
+     *
+     * @param bands frequency bands
+     * @param bufferLength length of the transform
+     * @param sampleRate number of samples in one second
+     */
+    public BandMapper(Band[] bands, int bufferLength, float sampleRate) {
+        bins = bufferLength/2 + 1;
+        binStart = new int[bands.length];
+        offsets = new int[bands.length + 1];
+
+        int[] binEnd = new int[bands.length];
+        for (int b=0; b < bands.length; b++) {
+            if (bands[b].frequencyEnd > bands[b].frequencyStart) {
+                binStart[b] = toBin(bands[b].frequencyStart, bufferLength, sampleRate);
+                binEnd[b] = toBin(bands[b].frequencyEnd - 1, bufferLength, sampleRate) + 1;
+            }
+            offsets[b + 1] = offsets[b] + binEnd[b] - binStart[b];
+        }
+
+        // Every frequency of the band adds the same part to the weight of its bin
+        weights = new double[offsets[bands.length]];
+        for (int b=0; b < bands.length; b++) {
+            Band band = bands[b];
+            double part = 1.0 / (band.frequencyEnd - band.frequencyStart);
+            for (int f = band.frequencyStart; f < band.frequencyEnd; f++) {
+                weights[offsets[b] + toBin(f, bufferLength, sampleRate) - binStart[b]] += part;
+            }
+        }
+    }
+
+    /**
+     * Return index of the bin, which contains given frequency.
+     *
+     * @param frequency frequency in Hz
+     * @param bufferLength length of the transform
+     * @param sampleRate number of samples in one second
+     * @return index of the bin
+     */
+    private int toBin(int frequency, int bufferLength, float sampleRate) {
+        return Math.min(frequency*bufferLength/(int)sampleRate, bins - 1);
+    }
+
+    /**
+     * Return number of the bands.
+     *
+     * @return number of the bands
+     */
+    public int getBandCount() {
+        return binStart.length;
+    }
+
+    /**
+     * Return indices of the bins, which belong to some band.
+     *
+     * @return sorted indices of the used bins
+     */
+    public int[] getUsedBins() {
+        boolean[] used = new boolean[bins];
+        int count = 0;
+        for (int b=0; b < binStart.length; b++) {
+            for (int k = binStart[b]; k < binStart[b] + offsets[b + 1] - offsets[b]; k++) {
+                if (!used[k]) {
+                    used[k] = true;
+                    count++;
+                }
+            }
+        }
+        int[] ret = new int[count];
+        for (int k=0, i=0; k < bins; k++) {
+            if (used[k]) {
+                ret[i++] = k;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reduce the spectrum into decibel values of the bands.
+     * Bands, which do not cover any frequency, get negative infinity.
+     *
+     * @param re real parts of the spectrum bins
+     * @param im imaginary parts of the spectrum bins
+     * @param mode how the bins of one band are reduced
+     * @param out where the decibel value of every band will be stored
+     */
+    public void reduce(double[] re, double[] im, Mode mode, double[] out) {
+        for (int b=0; b < binStart.length; b++) {
+            int k = binStart[b];
+            double value = 0;
+            for (int w = offsets[b]; w < offsets[b + 1]; w++, k++) {
+                double power = re[k]*re[k] + im[k]*im[k];
+                switch (mode) {
+                    case peak:
+                        if (power > value) {
+                            value = power;
+                        }
+                        break;
+                    case rms:
+                        value += weights[w] * power;
+                        break;
+                    default:
+                        value += weights[w] * Math.sqrt(power);
+                }
+            }
+            out[b] = value;
+        }
+        // Power is converted by 10*log10, magnitude by 20*log10
+        Kernels.get().decibels(out, mode == Mode.average ? 20.0 : 10.0, binStart.length);
+    }
+
+}
@@ -0,0 +1,81 @@
+
+package com.kappa.fplayer.sound;
+
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Source reading the decoded frames of a file from the {@link PcmCache}.
+ * Nothing is decoded and seeking takes constant time.
+ *
+ * @author Vojtech Vasek
+ */
+public class CachedSource implements AudioSource {
+
+    private final AudioFormat   format;
+    private final ByteBuffer[]  chunks;     // Own views of the cached buffers
+    private final int           chunkBytes;
+    private final long          bytes;
+    private long                position;   // Position in bytes
+
+    /**
+     * Open cached file.
+     *
+     * @param entry complete entry of the cache
+     */
+    CachedSource(PcmCache.Entry entry) {
+        format = entry.format;
+        chunkBytes = entry.chunkBytes;
+        bytes = entry.bytes;
+        chunks = new ByteBuffer[entry.chunks.size()];
+        for (int i=0; i < chunks.length; i++) {
+            chunks[i] = entry.chunks.get(i).duplicate();
+        }
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) {
+        if (position >= bytes) {
+            return -1;
+        }
+        int frameSize = format.getFrameSize();
+        int total = (int)Math.min(length / frameSize * frameSize, bytes - position);
+        int done = 0;
+        while (done < total) {
+            ByteBuffer chunk = chunks[(int)(position / chunkBytes)];
+            int pos = (int)(position % chunkBytes);
+            int count = Math.min(total - done, chunkBytes - pos);
+            chunk.position(pos);
+            chunk.get(data, offset + done, count);
+            done += count;
+            position += count;
+        }
+        return done;
+    }
+
+    @Override
+    public void seek(long frame) {
+        position = Math.max(0, Math.min(frame * format.getFrameSize(), bytes));
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position / format.getFrameSize();
+    }
+
+    @Override
+    public long getFrameLength() {
+        return bytes / format.getFrameSize();
+    }
+
+    @Override
+    public void close() {
+        position = bytes;
+    }
+
+}
@@ -0,0 +1,132 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Source, which copies the decoded frames of another source into
+ * the {@link PcmCache}. The file is cached only when it is read from its
+ * beginning to its end without seeking, the copy is put into the cache
+ * when the end of the file is reached. Seeking, closing the source early
+ * or running out of the cache budget abandons the copy. Every buffer of
+ * the copy is reserved in the cache before it is allocated, so that all
+ * copies being made together fit into the budget.
+ *
+ * @author Vojtech Vasek
+ */
+public class CachingSource implements AudioSource {
+
+    private final AudioSource       source;
+    private final PcmCache          cache;
+    private final String            key;
+    private PcmCache.Entry          entry;      // Copy being made, null when abandoned
+    private ByteBuffer              last;       // The buffer being filled
+
+    /**
+     * Wrap given source.
+     *
+     * @param source source decoding the file
+     * @param cache where the copy will be put
+     * @param key key of the file in the cache
+     */
+    CachingSource(AudioSource source, PcmCache cache, String key) {
+        this.source = source;
+        this.cache = cache;
+        this.key = key;
+        if (source.getFramePosition() == 0) {
+            entry = new PcmCache.Entry(source.getFormat());
+        }
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return source.getFormat();
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        int read = source.read(data, offset, length);
+        if (entry != null) {
+            if (read > 0) {
+                append(data, offset, read);
+            } else if (read < 0) {
+                cache.put(key, entry);
+                entry = null;
+                last = null;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Append read bytes to the copy.
+     *
+     * @param data read bytes
+     * @param offset index of the first byte
+     * @param length number of bytes
+     */
+    private void append(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (last == null || !last.hasRemaining()) {
+                if (!cache.reserve(entry.chunkBytes)) {
+                    abandon();
+                    return;
+                }
+                try {
+                    last = ByteBuffer.allocateDirect(entry.chunkBytes);
+                } catch (OutOfMemoryError ex) {
+                    // Direct memory is limited by -XX:MaxDirectMemorySize
+                    System.err.println("CachingSource: out of direct memory, caching abandoned");
+                    cache.release(entry.chunkBytes);
+                    abandon();
+                    return;
+                }
+                entry.chunks.add(last);
+            }
+            int count = Math.min(length, last.remaining());
+            last.put(data, offset, count);
+            entry.bytes += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Forget the copy and return its reserved memory to the cache,
+     * its buffers are freed by the garbage collector.
+     */
+    private void abandon() {
+        if (entry != null) {
+            cache.release(entry.capacity());
+        }
+        entry = null;
+        last = null;
+    }
+
+    @Override
+    public void seek(long frame) throws IOException {
+        if (frame != source.getFramePosition()) {
+            abandon();
+        }
+        source.seek(frame);
+    }
+
+    @Override
+    public long getFramePosition() {
+        return source.getFramePosition();
+    }
+
+    @Override
+    public long getFrameLength() {
+        return source.getFrameLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        abandon();
+        source.close();
+    }
+
+}
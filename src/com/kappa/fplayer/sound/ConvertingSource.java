@@ -0,0 +1,307 @@
+
+package com.kappa.fplayer.sound;
+
+import com.kappa.fplayer.fft.Transform;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Source converting the frames of another source into a different format,
+ * so that tracks of any format can be played one after another on the same
+ * audio line. Sample size, encoding, byte order, number of channels and
+ * sample rate are converted in one pass. Missing channels are copied from
+ * the existing ones, mono is the average of all channels.
+ *
+ * <p>Sample rate is converted by a band-limited interpolation: every frame
+ * of the result is a sum of the closest source frames weighted by the sinc
+ * function windowed by the Kaiser window. Cutoff of the filter is half of
+ * the lower of both sample rates, so nothing is mirrored when the rate is
+ * lowered. The filter is sampled in advance at {@link #KERNEL_PHASES}
+ * points per one source frame and interpolated linearly between them.
+ *
+ * @author Vojtech Vasek
+ */
+public class ConvertingSource implements AudioSource {
+
+    /**
+     * Number of frames read from the converted source at once.
+     */
+    public static final int DEFAULT_CHUNK_FRAMES = 1024;
+    /**
+     * Number of zero crossings of the sinc function on each side of the filter.
+     */
+    public static final int KERNEL_ZEROS = 32;
+    /**
+     * Number of samples of the filter per one source frame.
+     */
+    public static final int KERNEL_PHASES = 256;
+    /**
+     * Shape parameter of the Kaiser window of the filter.
+     */
+    public static final double KERNEL_BETA = 8.6;
+
+    private final AudioSource   source;
+    private final AudioFormat   format;
+    private final int           inChannels;
+    private final int           outChannels;
+    private final int           inBytes;        // Size of one sample of the source
+    private final int           outBytes;       // Size of one sample of the result
+    private final double        inNorm;         // Normalization of the integer samples of the source
+    private final boolean       inFloat;
+    private final boolean       inBigEndian;
+    private final boolean       outFloat;
+    private final boolean       outBigEndian;
+    private final double        ratio;          // Source frames per one frame of the result
+    private final int           halfWidth;      // Source frames on each side of the filter
+    private final double[]      kernel;         // Filter at offsets from -halfWidth to halfWidth source frames
+    private final double[]      sums;           // Channels of the frame of the result being counted
+    private final byte[]        raw;
+    private double[]            frames;         // Source frames with the channels of the result
+    private int                 frameCount;
+    private double              next;           // Position of the next frame of the result in 'frames',
+                                                // the frames before it are kept for the filter
+    private boolean             end;
+    private long                position;
+
+    /**
+     * Wrap given source.
+     *
+     * @param source source of signed integer or float PCM data
+     * @param format format of the result, signed integer PCM or 32-bit float PCM
+     * @throws IllegalArgumentException if one of the formats is not supported
+     */
+    public ConvertingSource(AudioSource source, AudioFormat format) {
+        AudioFormat in = source.getFormat();
+        if (!PcmDecoder.supports(in) || !isSupported(format)) {
+            throw new IllegalArgumentException("ConvertingSource: can't convert "+in+" to "+format);
+        }
+        this.source = source;
+        this.format = format;
+        inChannels = in.getChannels();
+        outChannels = format.getChannels();
+        inBytes = in.getSampleSizeInBits() / 8;
+        outBytes = format.getSampleSizeInBits() / 8;
+        inNorm = Math.pow(2, 1 - 8*inBytes);
+        inFloat = AudioFormat.Encoding.PCM_FLOAT.equals(in.getEncoding());
+        inBigEndian = in.isBigEndian();
+        outFloat = AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding());
+        outBigEndian = format.isBigEndian();
+        ratio = in.getSampleRate() / format.getSampleRate();
+        // Same rates need no filter, the frames are only copied
+        halfWidth = ratio == 1 ? 1 : (int)Math.ceil(KERNEL_ZEROS * Math.max(1, ratio));
+        kernel = createKernel(halfWidth, Math.min(1, 1 / ratio));
+        sums = new double[outChannels];
+        raw = new byte[DEFAULT_CHUNK_FRAMES * in.getFrameSize()];
+        frames = new double[(DEFAULT_CHUNK_FRAMES + 2*halfWidth) * outChannels];
+        position = (long)(source.getFramePosition() / ratio);
+        restart();
+    }
+
+    /**
+     * Sample the windowed sinc filter.
+     *
+     * @param halfWidth length of each side of the filter in source frames
+     * @param cutoff cutoff frequency relative to the half of the source sample rate
+     * @return values of the filter at every 1/{@link #KERNEL_PHASES} source frame from -halfWidth to halfWidth
+     */
+    private static double[] createKernel(int halfWidth, double cutoff) {
+        int size = 2 * halfWidth * KERNEL_PHASES + 1;
+        double[] window = Transform.kaiserWindow(size, KERNEL_BETA);
+        double[] k = new double[size];
+        for (int m=0; m < size; m++) {
+            double x = cutoff * Math.PI * ((double)m / KERNEL_PHASES - halfWidth);
+            k[m] = cutoff * window[m] * (x == 0 ? 1 : Math.sin(x) / x);
+        }
+        return k;
+    }
+
+    /**
+     * Forget the source frames, the filter starts on silence before the next one.
+     */
+    private void restart() {
+        frameCount = halfWidth - 1;
+        Arrays.fill(frames, 0, frameCount * outChannels, 0);
+        next = frameCount;
+    }
+
+    /**
+     * Return whether the result can be of given format.
+     *
+     * @param format format of the result
+     * @return true for signed integer PCM and 32-bit float PCM with known layout and sample rate
+     */
+    public static boolean isSupported(AudioFormat format) {
+        int bits = format.getSampleSizeInBits();
+        boolean encoding = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+                || AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) && bits == 32;
+        return encoding && bits >= 8 && bits % 8 == 0 && format.getChannels() > 0
+                && format.getFrameSize() == format.getChannels() * bits/8
+                && format.getSampleRate() > 0;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        int max = length / format.getFrameSize();
+        int done = 0;
+        int pos = offset;
+        while (done < max) {
+            int i = (int)next;
+            if (i + halfWidth < frameCount || end && i < frameCount) {
+                filter(i, next - i);
+                for (int c=0; c < outChannels; c++, pos += outBytes) {
+                    encode(sums[c], data, pos);
+                }
+                next += ratio;
+                done++;
+            } else if (end || !fill()) {
+                break;
+            }
+        }
+        if (done == 0 && end && (int)next >= frameCount) {
+            return -1;
+        }
+        position += done;
+        return done * format.getFrameSize();
+    }
+
+    /**
+     * Count one frame of the result into the sums from the source frames
+     * around it. Frames after the end of the source are silence.
+     *
+     * @param i index of the source frame just before the frame of the result
+     * @param t distance of the frame of the result from the source frame 'i', from [0,1)
+     */
+    private void filter(int i, double t) {
+        for (int c=0; c < outChannels; c++) {
+            sums[c] = 0;
+        }
+        double phase = t * KERNEL_PHASES;
+        int base = (int)phase;
+        double w = phase - base;
+        // Tap 'k' is the source frame i-halfWidth+1+k at distance t+halfWidth-1-k
+        int first = i - halfWidth + 1;
+        int taps = Math.min(2 * halfWidth, frameCount - first);
+        for (int k=0; k < taps; k++) {
+            int m = base + (2*halfWidth - 1 - k) * KERNEL_PHASES;
+            double coef = kernel[m] + (kernel[m + 1] - kernel[m]) * w;
+            int f = (first + k) * outChannels;
+            for (int c=0; c < outChannels; c++) {
+                sums[c] += frames[f + c] * coef;
+            }
+        }
+    }
+
+    /**
+     * Read the following source frames, keep the ones still needed for the filter.
+     *
+     * @return false at the end of the source
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        int drop = Math.max(0, Math.min((int)next - halfWidth + 1, frameCount));
+        System.arraycopy(frames, drop * outChannels, frames, 0, (frameCount - drop) * outChannels);
+        frameCount -= drop;
+        next -= drop;
+
+        int read = source.read(raw, 0, raw.length);
+        if (read < 0) {
+            end = true;
+            return false;
+        }
+        int count = read / (inChannels * inBytes);
+        if ((frameCount + count) * outChannels > frames.length) {
+            double[] bigger = new double[(frameCount + count) * outChannels];
+            System.arraycopy(frames, 0, bigger, 0, frameCount * outChannels);
+            frames = bigger;
+        }
+        for (int f=0, pos=0; f < count; f++, pos += inChannels * inBytes) {
+            int out = (frameCount + f) * outChannels;
+            if (outChannels == 1 && inChannels > 1) {
+                double sum = 0;
+                for (int c=0; c < inChannels; c++) {
+                    sum += decode(raw, pos + c * inBytes);
+                }
+                frames[out] = sum / inChannels;
+            } else {
+                for (int c=0; c < outChannels; c++) {
+                    frames[out + c] = decode(raw, pos + (c % inChannels) * inBytes);
+                }
+            }
+        }
+        frameCount += count;
+        return true;
+    }
+
+    /**
+     * Decode one sample of the source.
+     *
+     * @param data raw data
+     * @param pos index of the first byte of the sample
+     * @return sample normalized into [-1,1]
+     */
+    private double decode(byte[] data, int pos) {
+        long value = 0;
+        for (int b=0; b < inBytes; b++) {
+            int p = inBigEndian ? pos + b : pos + inBytes - 1 - b;
+            value = value << 8 | (data[p] & 0xff);
+        }
+        if (inFloat) {
+            return Float.intBitsToFloat((int)value);
+        }
+        // Sign extension of the most significant byte
+        value = value << (64 - 8*inBytes) >> (64 - 8*inBytes);
+        return value * inNorm;
+    }
+
+    /**
+     * Encode one sample of the result.
+     *
+     * @param sample sample normalized into [-1,1]
+     * @param data where the sample will be stored
+     * @param pos index of the first byte of the sample
+     */
+    private void encode(double sample, byte[] data, int pos) {
+        long value;
+        if (outFloat) {
+            value = Float.floatToIntBits((float)sample);
+        } else {
+            long max = (1L << (8*outBytes - 1)) - 1;
+            value = Math.max(-max - 1, Math.min(max, Math.round(sample * (max + 1))));
+        }
+        for (int b=0; b < outBytes; b++) {
+            int p = outBigEndian ? pos + outBytes - 1 - b : pos + b;
+            data[p] = (byte)(value >> (8*b));
+        }
+    }
+
+    @Override
+    public void seek(long frame) throws IOException {
+        source.seek((long)(frame * ratio));
+        restart();
+        end = false;
+        position = frame;
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getFrameLength() {
+        long length = source.getFrameLength();
+        return length < 0 ? length : (long)(length / ratio);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+}
@@ -0,0 +1,180 @@
+
+package com.kappa.fplayer.sound;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Controller of the amount of audio data waiting in the audio line.
+ * Less data gives lower latency, but the line runs out of data (and clicks)
+ * as soon as the player is not scheduled for a while. The controller
+ * therefore starts with a low target latency, raises it after every underrun
+ * and lowers it slowly back, while the playback is stable. Read-ahead of
+ * the decoding stage is adjusted the same way.
+ *
+ * <p>When the target reaches the size of the line buffer and the line still
+ * runs out of data, the line should be opened again with a bigger buffer,
+ * see {@link #needsBiggerLine()}.
+ *
+ * <p>Controller is driven by the playback thread only, targets can be read
+ * from any thread.
+ *
+ * @author Vojtech Vasek
+ */
+public class LatencyController {
+
+    /**
+     * The lowest target latency in milliseconds.
+     */
+    public static final double  DEFAULT_MIN_MILLIS      = 30;
+    /**
+     * Target latency at the start of the playback in milliseconds.
+     */
+    public static final double  DEFAULT_START_MILLIS    = 80;
+    /**
+     * Largest line buffer, which is worth opening, in milliseconds.
+     */
+    public static final double  DEFAULT_MAX_LINE_MILLIS = 2000;
+    /**
+     * How long must the playback be without underruns, before the target is lowered.
+     */
+    public static final long    DEFAULT_STABLE_NANOS    = 10000000000L;
+    /**
+     * Target latency is multiplied by this number after an underrun.
+     */
+    public static final double  GROW_FACTOR             = 1.5;
+    /**
+     * Target latency is multiplied by this number after a stable period.
+     */
+    public static final double  SHRINK_FACTOR           = 0.9;
+
+    private final double        bytesPerMilli;
+    private final int           frameSize;
+    private final int           minReadAhead;
+    private final int           maxReadAhead;
+    private int                 lineBytes;
+    private volatile double     targetMillis;
+    private volatile int        readAhead;      // Number of chunks decoded in advance
+    private boolean             lineLimited;    // Underrun happened with the target at the size of the line
+    private long                lastChange;
+
+    /**
+     * Prepare controller of given line.
+     *
+     * @param format format of the line
+     * @param lineBytes size of the line buffer in bytes
+     * @param minReadAhead the lowest number of chunks decoded in advance
+     * @param maxReadAhead the highest number of chunks decoded in advance
+     */
+    public LatencyController(AudioFormat format, int lineBytes, int minReadAhead, int maxReadAhead) {
+        frameSize = format.getFrameSize();
+        bytesPerMilli = format.getSampleRate() * frameSize / 1000;
+        this.minReadAhead = minReadAhead;
+        this.maxReadAhead = maxReadAhead;
+        readAhead = minReadAhead;
+        setLineBuffer(lineBytes);
+        targetMillis = Math.min(DEFAULT_START_MILLIS, getLineMillis());
+        lastChange = System.nanoTime();
+    }
+
+    /**
+     * Set size of the line buffer, e.g. after the line was opened again.
+     *
+     * @param lineBytes size of the line buffer in bytes
+     */
+    public final void setLineBuffer(int lineBytes) {
+        this.lineBytes = lineBytes;
+        lineLimited = false;
+    }
+
+    /**
+     * Return size of the line buffer.
+     *
+     * @return size of the line buffer in milliseconds
+     */
+    public double getLineMillis() {
+        return lineBytes / bytesPerMilli;
+    }
+
+    /**
+     * Return size of the biggest line buffer, which is worth opening.
+     *
+     * @return size of the line buffer in bytes, whole number of frames
+     */
+    public int getMaxLineBytes() {
+        int bytes = (int)(DEFAULT_MAX_LINE_MILLIS * bytesPerMilli);
+        return bytes - bytes % frameSize;
+    }
+
+    /**
+     * Return how many milliseconds of audio should wait in the line.
+     *
+     * @return target latency in milliseconds
+     */
+    public double getTargetMillis() {
+        return targetMillis;
+    }
+
+    /**
+     * Return how many bytes should wait in the line.
+     *
+     * @return target fill of the line, whole number of frames
+     */
+    public int getTargetBytes() {
+        int bytes = (int)(targetMillis * bytesPerMilli);
+        return Math.min(lineBytes, bytes - bytes % frameSize);
+    }
+
+    /**
+     * Return how many chunks should be decoded in advance.
+     *
+     * @return read-ahead in chunks
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Convert number of bytes in the line into time.
+     *
+     * @param bytes number of bytes
+     * @return time to play them in milliseconds
+     */
+    public double toMillis(int bytes) {
+        return bytes / bytesPerMilli;
+    }
+
+    /**
+     * Record that the line ran out of data, raise the target and the read-ahead.
+     */
+    public void underrun() {
+        double line = getLineMillis();
+        lineLimited = targetMillis >= line;
+        targetMillis = Math.min(line, targetMillis * GROW_FACTOR);
+        readAhead = Math.min(maxReadAhead, readAhead * 2);
+        lastChange = System.nanoTime();
+    }
+
+    /**
+     * Return whether the line buffer is too small, i.e. the line ran out of data
+     * even when the target was the whole buffer.
+     *
+     * @return true if the line should be opened with a bigger buffer
+     */
+    public boolean needsBiggerLine() {
+        return lineLimited && getLineMillis() < DEFAULT_MAX_LINE_MILLIS;
+    }
+
+    /**
+     * Lower the target and the read-ahead, if the playback has been
+     * stable for long enough. Called regularly by the playback.
+     */
+    public void update() {
+        long now = System.nanoTime();
+        if (now - lastChange >= DEFAULT_STABLE_NANOS) {
+            targetMillis = Math.max(DEFAULT_MIN_MILLIS, targetMillis * SHRINK_FACTOR);
+            readAhead = Math.max(minReadAhead, readAhead - 1);
+            lastChange = now;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Plain PCM WAV file mapped into memory.
+ * RIFF header is parsed directly and the data chunk is mapped by FileChannel.map,
+ * samples are therefore never copied into the heap by the source itself and
+ * seeking only moves the position.
+ *
+ * <p>One mapping can not be bigger than 2 GB, longer files are mapped
+ * in several segments. Neighbouring segments overlap by {@link #MAX_WINDOW}
+ * bytes, so that any window returned by {@link #window(long, int)} lies
+ * in one segment.
+ *
+ * <p>Both RIFF and RF64 (WAV bigger than 4 GB) files with integer PCM of at least
+ * 16 bits or 32-bit float PCM are supported, including the extensible format.
+ *
+ * <p><a href="http://soundfile.sapp.org/doc/WaveFormat/">On WAV file format</a>
+ *
+ * @author Vojtech Vasek
+ */
+public class MappedWavSource implements AudioSource {
+
+    /**
+     * Maximal size of a window in bytes.
+     */
+    public static final int     MAX_WINDOW = 1 << 20;
+
+    private static final int    WAVE_FORMAT_PCM         = 1;
+    private static final int    WAVE_FORMAT_IEEE_FLOAT  = 3;
+    private static final int    WAVE_FORMAT_EXTENSIBLE  = 0xFFFE;
+    private static final long   UNKNOWN_SIZE            = 0xFFFFFFFFL;
+
+    private final AudioFormat       format;
+    private final int               frameSize;
+    private final long              frameLength;
+    private final long              segmentFrames;  // Frames from the start of one segment to the start of the next one
+    private final MappedByteBuffer[] segments;
+    private long                    position;       // Next frame to be read
+
+    /**
+     * Parse the header of given file and map its data.
+     *
+     * @param file WAV file
+     * @throws IOException
+     * @throws UnsupportedAudioFileException if the file is not a plain PCM WAV file
+     */
+    public MappedWavSource(File file) throws IOException, UnsupportedAudioFileException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long fileLength = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (fileLength < 12 || channel.read(header, 0) < 12) {
+                throw new UnsupportedAudioFileException("MappedWavSource: file too short");
+            }
+            int riff = header.getInt(0);
+            boolean rf64 = riff == fourCC("RF64");
+            if ((riff != fourCC("RIFF") && !rf64) || header.getInt(8) != fourCC("WAVE")) {
+                throw new UnsupportedAudioFileException("MappedWavSource: not a WAV file");
+            }
+
+            // Walk through the chunks until the data chunk is found
+            AudioFormat fmt = null;
+            long dataSize64 = -1;
+            long dataStart = -1, dataSize = 0;
+            ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            for (long pos = 12; pos + 8 <= fileLength; ) {
+                chunk.clear();
+                chunk.limit(8);
+                channel.read(chunk, pos);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & UNKNOWN_SIZE;
+                long body = pos + 8;
+
+                if (id == fourCC("ds64")) {
+                    // Real sizes of the RF64 file: RIFF size, data size, sample count
+                    chunk.clear();
+                    chunk.limit(16);
+                    channel.read(chunk, body);
+                    dataSize64 = chunk.getLong(8);
+                } else if (id == fourCC("fmt ")) {
+                    chunk.clear();
+                    chunk.limit((int)Math.min(size, chunk.capacity()));
+                    channel.read(chunk, body);
+                    fmt = parseFormat(chunk, (int)size);
+                } else if (id == fourCC("data")) {
+                    dataStart = body;
+                    if (rf64 && size == UNKNOWN_SIZE && dataSize64 >= 0) {
+                        size = dataSize64;
+                    }
+                    // Recorders, which were not closed properly, leave the size unknown
+                    dataSize = Math.min(size, fileLength - body);
+                    break;
+                }
+                // Chunks are aligned to two bytes
+                pos = body + size + (size & 1);
+            }
+            if (fmt == null || dataStart < 0) {
+                throw new UnsupportedAudioFileException("MappedWavSource: missing fmt or data chunk");
+            }
+
+            format = fmt;
+            frameSize = fmt.getFrameSize();
+            frameLength = dataSize / frameSize;
+            segmentFrames = (Integer.MAX_VALUE - MAX_WINDOW) / frameSize;
+
+            long dataLength = frameLength * frameSize;
+            long segmentLength = segmentFrames * frameSize;
+            int count = (int)Math.max(1, (dataLength + segmentLength - 1) / segmentLength);
+            segments = new MappedByteBuffer[count];
+            for (int i=0; i < count; i++) {
+                long start = i * segmentLength;
+                long length = Math.min(segmentLength + MAX_WINDOW, dataLength - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + start, length);
+                segments[i].order(fmt.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Return integer value of given four character code in little endian.
+     *
+     * @param code four ASCII characters
+     * @return value of the code as read from the file
+     */
+    private static int fourCC(String code) {
+        return code.charAt(0) | code.charAt(1) << 8 | code.charAt(2) << 16 | code.charAt(3) << 24;
+    }
+
+    /**
+     * Create audio format from the content of the fmt chunk.
+     *
+     * @param chunk content of the chunk
+     * @param size size of the chunk
+     * @return format of the data
+     * @throws UnsupportedAudioFileException if the data are not a decodable PCM
+     */
+    private static AudioFormat parseFormat(ByteBuffer chunk, int size) throws UnsupportedAudioFileException {
+        if (size < 16) {
+            throw new UnsupportedAudioFileException("MappedWavSource: fmt chunk too short");
+        }
+        int tag = chunk.getShort(0) & 0xffff;
+        int channels = chunk.getShort(2) & 0xffff;
+        int sampleRate = chunk.getInt(4);
+        int blockAlign = chunk.getShort(12) & 0xffff;
+        int bits = chunk.getShort(14) & 0xffff;
+        if (tag == WAVE_FORMAT_EXTENSIBLE && size >= 26) {
+            // The first two bytes of the sub-format GUID are the real format tag
+            tag = chunk.getShort(24) & 0xffff;
+        }
+
+        AudioFormat.Encoding encoding;
+        if (tag == WAVE_FORMAT_PCM) {
+            encoding = AudioFormat.Encoding.PCM_SIGNED;
+        } else if (tag == WAVE_FORMAT_IEEE_FLOAT) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else {
+            throw new UnsupportedAudioFileException("MappedWavSource: unsupported format tag "+tag);
+        }
+        AudioFormat format = new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+        if (!PcmDecoder.supports(format)) {
+            throw new UnsupportedAudioFileException("MappedWavSource: unsupported format "+format);
+        }
+        return format;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (position >= frameLength) {
+            return -1;
+        }
+        int frames = (int)Math.min(length / frameSize, frameLength - position);
+        int read = 0;
+        while (frames > 0) {
+            // Copy at most to the end of the current segment
+            int segment = (int)(position / segmentFrames);
+            long inSegment = position - segment * segmentFrames;
+            int count = (int)Math.min(frames, segmentFrames - inSegment);
+            ByteBuffer src = segments[segment].duplicate();
+            src.position((int)(inSegment * frameSize));
+            src.get(data, offset + read, count * frameSize);
+            read += count * frameSize;
+            frames -= count;
+            position += count;
+        }
+        return read;
+    }
+
+    /**
+     * Return view of given frames directly in the mapped memory.
+     * Byte order of the view is the order of the samples.
+     *
+     * @param frame index of the first frame
+     * @param frames number of frames, at most {@link #MAX_WINDOW} bytes
+     * @return buffer with the frames from its position to its limit,
+     * shorter if the file ends sooner
+     */
+    public ByteBuffer window(long frame, int frames) {
+        if (frames * frameSize > MAX_WINDOW) {
+            throw new IllegalArgumentException("MappedWavSource: window bigger than "+MAX_WINDOW+" bytes");
+        }
+        frame = Math.max(0, Math.min(frame, frameLength));
+        int segment = (int)Math.min(frame / segmentFrames, segments.length - 1);
+        ByteBuffer view = segments[segment].duplicate().order(segments[segment].order());
+        int start = (int)((frame - segment * segmentFrames) * frameSize);
+        view.position(start);
+        view.limit((int)Math.min(view.capacity(), start + (long)frames * frameSize));
+        return view;
+    }
+
+    @Override
+    public void seek(long frame) {
+        position = Math.max(0, Math.min(frame, frameLength));
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Mapped memory is released by the garbage collector, the file itself is already closed.
+     */
+    @Override
+    public void close() {
+        position = frameLength;
+    }
+
+}
@@ -1,8 +1,7 @@
 
 package com.kappa.fplayer.sound;
 
-import com.kappa.fplayer.fft.Complex;
-import com.kappa.fplayer.fft.Transform;
+import com.kappa.fplayer.fft.Stft;
 import com.kappa.fplayer.graphics.Animator;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -50,33 +49,21 @@ public class MicrophoneReader extends SoundReader {
             line.start();
         
             int numBytesRead;
-            byte[] data = new byte[bufferLength];
+            byte[] data = new byte[hop];
 
-            Complex[] cdata = new Complex[bufferLength];
-            for (int i=0; i < cdata.length; i++) {
-                cdata[i] = new Complex();
-            }
+            Stft stft = createStft();
+            double[] samples = new double[hop];
 
             animator.stopErasure();
             running = true;
             while (running) {
-                // Read the next chunk of data
-                numBytesRead = line.read(data, 0, bufferLength);
+                // Read the next chunk of data, one sample per byte
+                numBytesRead = line.read(data, 0, hop);
 
-                for (int i = numBytesRead - 1; i < bufferLength; i++) {
-                    cdata[i].set(0, 0);
-                }
-                for (int i=0; i < bufferLength; i++) {
-                    cdata[i].setImaginary(0);
-                    cdata[i].setReal(data[i]);
-                }
-                Transform.applyWindow(cdata, window);
-                animator.setData(Transform.transform(cdata));
-                try {
-                    animator.updateState();
-                } catch (Exception ex) {
-                    System.err.println(ex);
+                for (int i=0; i < numBytesRead; i++) {
+                    samples[i] = data[i];
                 }
+                stft.push(samples, 0, numBytesRead);
             }
             animator.performErasure();
         } catch (LineUnavailableException ex) {
@@ -0,0 +1,515 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Index of byte offsets of MPEG audio frames, one offset for every second of the audio.
+ * Decoding of an MP3 file can then start at the frame, which contains the wanted
+ * second, instead of decoding the whole file from its beginning.
+ *
+ * <p>Exact index is built by {@link #scan(File)}, which walks through all frame
+ * headers (it does not decode anything). Files with Xing or VBRI header contain
+ * a table of contents, from which an approximate index is available at once,
+ * see {@link #fromToc(File)}. Exact indices are stored in {@link #CACHE_DIR}
+ * and loaded by {@link #load(File)} as long as the file does not change.
+ *
+ * <p>The frame with Xing, Info or VBRI header carries no audio, but the decoder
+ * outputs it as a frame of silence, so it is counted as any other frame
+ * and the decoded frames are numbered the same way as by the decoder.
+ *
+ * <p><a href="http://www.mp3-tech.org/programmer/frame_header.html">On MPEG audio frame header</a>
+ *
+ * @author Vojtech Vasek
+ */
+public class Mp3FrameIndex {
+
+    /**
+     * Directory, where the indices are stored.
+     */
+    public static final File    CACHE_DIR = new File(System.getProperty("user.home"), ".fplayer");
+
+    private static final int    MAGIC = 0x46504d49;    // "FPMI"
+    private static final int    VERSION = 2;
+
+    // Bitrates in kbps for: MPEG1 layer I, II, III, MPEG2(.5) layer I, II and III
+    private static final int[][] BITRATES = {
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[]  SAMPLE_RATES = {44100, 48000, 32000};
+    // Bits, which must be the same in all frames of one stream: sync, version, layer, sample rate
+    private static final int    STREAM_MASK = 0xFFFE0C00;
+
+    private final int       sampleRate;
+    private final int       samplesPerFrame;
+    private final long[]    offsets;        // Offset of the frame containing the first sample of every second
+    private final long      frameLength;    // Number of decoded frames (samples per channel)
+    private final boolean   exact;
+
+    /**
+     * Create index from the known offsets.
+     *
+     * @param sampleRate sample rate of the stream
+     * @param samplesPerFrame number of samples in one MPEG frame
+     * @param offsets byte offset for every second
+     * @param frameLength number of decoded frames of the whole stream
+     * @param exact whether the offsets come from the frame headers
+     */
+    private Mp3FrameIndex(int sampleRate, int samplesPerFrame, long[] offsets, long frameLength, boolean exact) {
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.offsets = offsets;
+        this.frameLength = frameLength;
+        this.exact = exact;
+    }
+
+    /**
+     * Return whether the index was built from all frame headers. Approximate
+     * index points to a frame near the wanted second.
+     *
+     * @return true if the offsets are exact
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Return sample rate of the stream.
+     *
+     * @return number of samples in one second
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Return number of decoded frames of the whole stream.
+     *
+     * @return length of the stream in samples per channel
+     */
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Return number of samples decoded from one MPEG frame.
+     *
+     * @return samples per channel in one MPEG frame
+     */
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    /**
+     * Return offset of the MPEG frame, from which the decoding should start
+     * to reach given decoded frame.
+     *
+     * @param frame index of the decoded frame (sample per channel)
+     * @return offset in the file in bytes
+     */
+    public long getOffset(long frame) {
+        return offsets[second(frame)];
+    }
+
+    /**
+     * Return index of the first decoded frame at the offset returned by
+     * {@link #getOffset(long)}.
+     *
+     * @param frame index of the decoded frame (sample per channel)
+     * @return index of the first decoded frame at the offset, not bigger than 'frame'
+     */
+    public long getStartFrame(long frame) {
+        long first = (long)second(frame) * sampleRate;
+        return exact ? first / samplesPerFrame * samplesPerFrame : first;
+    }
+
+    /**
+     * Return index of the second, which contains given frame.
+     *
+     * @param frame index of the decoded frame
+     * @return index into the offsets
+     */
+    private int second(long frame) {
+        return (int)Math.max(0, Math.min(frame / sampleRate, offsets.length - 1));
+    }
+
+    /**
+     * Build exact index of given file by reading all its frame headers.
+     *
+     * @param file MP3 file
+     * @return exact index
+     * @throws IOException if the file can not be read or contains no MPEG audio
+     */
+    public static Mp3FrameIndex scan(File file) throws IOException {
+        MappedByteBuffer buf = map(file);
+        int pos = findFirstFrame(buf);
+        if (pos < 0) {
+            throw new IOException("Mp3FrameIndex: no MPEG audio frames in "+file);
+        }
+        int first = buf.getInt(pos);
+        int rate = sampleRate(first);
+        int spf = samplesPerFrame(first);
+
+        long[] offsets = new long[1024];
+        int seconds = 0;
+        long samples = 0;
+        int limit = buf.limit();
+        while (pos + 4 <= limit) {
+            int header = buf.getInt(pos);
+            if (!isValid(header) || (header & STREAM_MASK) != (first & STREAM_MASK)) {
+                // Damaged data or tag at the end of the file, find the next frame
+                pos++;
+                continue;
+            }
+            int bytes = frameBytes(header);
+            if (pos + bytes > limit) {
+                break;
+            }
+            // Every second, which starts in this frame, points here
+            while ((long)seconds * rate < samples + spf) {
+                if (seconds == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, seconds * 2);
+                }
+                offsets[seconds++] = pos;
+            }
+            samples += spf;
+            pos += bytes;
+        }
+        if (seconds == 0) {
+            throw new IOException("Mp3FrameIndex: no complete MPEG audio frame in "+file);
+        }
+        return new Mp3FrameIndex(rate, spf, Arrays.copyOf(offsets, seconds), samples, true);
+    }
+
+    /**
+     * Build approximate index from the table of contents in the Xing or VBRI header.
+     *
+     * @param file MP3 file
+     * @return approximate index, null if the file has no table of contents
+     * @throws IOException
+     */
+    public static Mp3FrameIndex fromToc(File file) throws IOException {
+        MappedByteBuffer buf = map(file);
+        int pos = findFirstFrame(buf);
+        if (pos < 0) {
+            return null;
+        }
+        int header = buf.getInt(pos);
+        int rate = sampleRate(header);
+        int spf = samplesPerFrame(header);
+        // Decoder outputs the frame with the header as one frame of silence
+        int start = pos + frameBytes(header);
+        double headerSeconds = (double)spf / rate;
+
+        int xing = pos + 4 + sideInfoBytes(header);
+        int vbri = pos + 4 + 32;
+        long[] offsets;
+        long frames;
+        if (xing + 8 <= buf.limit() && (buf.getInt(xing) == fourCC("Xing") || buf.getInt(xing) == fourCC("Info"))) {
+            int flags = buf.getInt(xing + 4);
+            if ((flags & 1) == 0 || (flags & 4) == 0) {
+                return null;
+            }
+            int p = xing + 8;
+            frames = buf.getInt(p) & 0xFFFFFFFFL;
+            p += 4;
+            long bytes = buf.limit() - start;
+            if ((flags & 2) != 0) {
+                bytes = buf.getInt(p) & 0xFFFFFFFFL;
+                p += 4;
+            }
+            if (p + 100 > buf.limit() || frames == 0) {
+                return null;
+            }
+            // Entry 'i' is the position of i percent of the duration in 1/256 of the size
+            double duration = (double)frames * spf / rate;
+            offsets = new long[(int)Math.ceil(duration + headerSeconds)];
+            for (int s=0; s < offsets.length; s++) {
+                double percent = Math.max(0, Math.min(99.999, 100.0 * (s - headerSeconds) / duration));
+                int i = (int)percent;
+                int fa = buf.get(p + i) & 0xff;
+                int fb = i < 99 ? buf.get(p + i + 1) & 0xff : 256;
+                double fx = fa + (fb - fa) * (percent - i);
+                offsets[s] = start + (long)(fx / 256 * bytes);
+            }
+        } else if (vbri + 26 <= buf.limit() && buf.getInt(vbri) == fourCC("VBRI")) {
+            frames = buf.getInt(vbri + 14) & 0xFFFFFFFFL;
+            int entries = buf.getShort(vbri + 18) & 0xffff;
+            int scale = buf.getShort(vbri + 20) & 0xffff;
+            int entrySize = buf.getShort(vbri + 22) & 0xffff;
+            int framesPerEntry = buf.getShort(vbri + 24) & 0xffff;
+            int table = vbri + 26;
+            if (frames == 0 || framesPerEntry == 0 || entrySize < 1 || entrySize > 4
+                    || table + entries * entrySize > buf.limit()) {
+                return null;
+            }
+            // Offsets of the beginnings of the entries
+            long[] entryStart = new long[entries + 1];
+            entryStart[0] = start;
+            for (int e=0; e < entries; e++) {
+                long size = 0;
+                for (int b=0; b < entrySize; b++) {
+                    size = size << 8 | (buf.get(table + e * entrySize + b) & 0xff);
+                }
+                entryStart[e + 1] = entryStart[e] + size * scale;
+            }
+            offsets = new long[(int)Math.ceil((double)(frames + 1) * spf / rate)];
+            for (int s=0; s < offsets.length; s++) {
+                double frame = Math.max(0, (double)s * rate / spf - 1) / framesPerEntry;
+                int e = Math.min((int)frame, entries - 1);
+                offsets[s] = entryStart[e] + (long)((entryStart[e + 1] - entryStart[e]) * Math.min(1, frame - e));
+            }
+        } else {
+            return null;
+        }
+
+        // Table points somewhere into the frames, move to the next frame header
+        for (int s=0; s < offsets.length; s++) {
+            offsets[s] = Math.max(start, alignToFrame(buf, offsets[s], header));
+        }
+        offsets[0] = pos;
+        return new Mp3FrameIndex(rate, spf, offsets, (frames + 1) * spf, false);
+    }
+
+    /**
+     * Load stored index of given file.
+     *
+     * @param file MP3 file
+     * @return stored index, null if there is none or the file was changed since
+     */
+    public static Mp3FrameIndex load(File file) {
+        File stored = cacheFile(file);
+        if (!stored.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stored)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+                return null;
+            }
+            int rate = in.readInt();
+            int spf = in.readInt();
+            long frameLength = in.readLong();
+            long[] offsets = new long[in.readInt()];
+            for (int i=0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+            return new Mp3FrameIndex(rate, spf, offsets, frameLength, true);
+        } catch (IOException ex) {
+            System.err.println("Mp3FrameIndex: can't load "+stored+": "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store this index of given file into the cache directory.
+     * Only exact indices are stored.
+     *
+     * @param file MP3 file, which was indexed
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        if (!exact) {
+            return;
+        }
+        File stored = cacheFile(file);
+        File dir = stored.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Mp3FrameIndex: can't create "+dir);
+        }
+        // Write into temporary file first, so that no reader sees a half written index
+        File tmp = File.createTempFile(stored.getName(), ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeInt(sampleRate);
+            out.writeInt(samplesPerFrame);
+            out.writeLong(frameLength);
+            out.writeInt(offsets.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        }
+        Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Return file, where the index of given file is stored.
+     *
+     * @param file MP3 file
+     * @return file in the cache directory
+     */
+    private static File cacheFile(File file) {
+        String path = file.getAbsolutePath();
+        String name = file.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(new File(CACHE_DIR, "index"), name + "-" + Integer.toHexString(path.hashCode()) + ".idx");
+    }
+
+    /**
+     * Map given file into memory, at most the first 2 GB.
+     *
+     * @param file file to be mapped
+     * @return read only mapping of the file
+     * @throws IOException
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Find the first MPEG frame of the file, skip ID3v2 tag if present.
+     * Frame is accepted only if the following frame is also valid,
+     * so that random data are not taken for a frame.
+     *
+     * @param buf content of the file
+     * @return offset of the first frame, -1 if there is none
+     */
+    private static int findFirstFrame(MappedByteBuffer buf) {
+        int pos = 0;
+        if (buf.limit() >= 10 && buf.get(0) == 'I' && buf.get(1) == 'D' && buf.get(2) == '3') {
+            // Size is stored in 4 bytes of 7 bits, footer doubles the 10 byte header
+            int size = 0;
+            for (int i=6; i < 10; i++) {
+                size = size << 7 | (buf.get(i) & 0x7f);
+            }
+            pos = 10 + size + ((buf.get(5) & 0x10) != 0 ? 10 : 0);
+        }
+        return alignToFrame(buf, pos, 0);
+    }
+
+    /**
+     * Find the first frame at or after given offset.
+     *
+     * @param buf content of the file
+     * @param from where to start the search
+     * @param stream header of a frame of the stream, 0 for any stream
+     * @return offset of the frame, -1 if there is none
+     */
+    private static int alignToFrame(MappedByteBuffer buf, long from, int stream) {
+        int limit = buf.limit();
+        for (long pos = Math.max(0, from); pos + 4 <= limit; pos++) {
+            int header = buf.getInt((int)pos);
+            if (!isValid(header) || (stream != 0 && (header & STREAM_MASK) != (stream & STREAM_MASK))) {
+                continue;
+            }
+            int next = (int)pos + frameBytes(header);
+            if (next + 4 > limit) {
+                return (int)pos;
+            }
+            int nextHeader = buf.getInt(next);
+            if (isValid(nextHeader) && (nextHeader & STREAM_MASK) == (header & STREAM_MASK)) {
+                return (int)pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return big endian value of given four character code.
+     *
+     * @param code four ASCII characters
+     * @return value of the code as read by getInt
+     */
+    private static int fourCC(String code) {
+        return code.charAt(0) << 24 | code.charAt(1) << 16 | code.charAt(2) << 8 | code.charAt(3);
+    }
+
+    /**
+     * Return whether given four bytes form a supported frame header.
+     * Free format bitrate is not supported.
+     *
+     * @param header four bytes from the file
+     * @return true if it is a frame header
+     */
+    private static boolean isValid(int header) {
+        return (header & 0xFFE00000) == 0xFFE00000
+                && ((header >>> 19) & 3) != 1       // Reserved version
+                && ((header >>> 17) & 3) != 0       // Reserved layer
+                && ((header >>> 12) & 15) != 0      // Free format
+                && ((header >>> 12) & 15) != 15     // Bad bitrate
+                && ((header >>> 10) & 3) != 3;      // Reserved sample rate
+    }
+
+    /**
+     * Return sample rate of the frame.
+     *
+     * @param header valid frame header
+     * @return samples per second
+     */
+    private static int sampleRate(int header) {
+        int version = (header >>> 19) & 3;
+        // MPEG1 has the full rate, MPEG2 half and MPEG2.5 quarter of it
+        return SAMPLE_RATES[(header >>> 10) & 3] >> (version == 3 ? 0 : version == 2 ? 1 : 2);
+    }
+
+    /**
+     * Return number of samples decoded from one frame.
+     *
+     * @param header valid frame header
+     * @return samples per channel
+     */
+    private static int samplesPerFrame(int header) {
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        if (layer == 3) {
+            return 384;
+        }
+        return layer == 1 && version != 3 ? 576 : 1152;
+    }
+
+    /**
+     * Return size of the side information of the layer III frame.
+     *
+     * @param header valid frame header
+     * @return bytes between the header and the Xing tag
+     */
+    private static int sideInfoBytes(int header) {
+        boolean mono = ((header >>> 6) & 3) == 3;
+        if (((header >>> 19) & 3) == 3) {
+            return mono ? 17 : 32;
+        }
+        return mono ? 9 : 17;
+    }
+
+    /**
+     * Return size of the whole frame including the header.
+     *
+     * @param header valid frame header
+     * @return frame size in bytes
+     */
+    private static int frameBytes(int header) {
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int row = version == 3 ? 3 - layer : (layer == 3 ? 3 : 4);
+        int bitrate = BITRATES[row][(header >>> 12) & 15] * 1000;
+        int rate = sampleRate(header);
+        int padding = (header >>> 9) & 1;
+        if (layer == 3) {
+            return (12 * bitrate / rate + padding) * 4;
+        }
+        return samplesPerFrame(header) / 8 * bitrate / rate + padding;
+    }
+
+}
@@ -0,0 +1,189 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Seekable source of MP3 files decoded into 16-bit signed little endian PCM.
+ * To seek far, decoding is restarted at the MPEG frame found in the
+ * {@link Mp3FrameIndex}, only the rest up to the wanted frame is decoded.
+ * The index is loaded from the cache, or built in a background thread
+ * (approximate index from the Xing or VBRI header is used in the meantime).
+ * Until there is any index, seeking decodes the file from its beginning.
+ *
+ * <p>Layer III frame may use data of the previous frames (the bit reservoir)
+ * and its samples overlap with the previous frame, so the decoding restarts
+ * at least {@link #PREROLL_FRAMES} MPEG frames before the wanted one and
+ * the samples of these frames are thrown away.
+ *
+ * @author Vojtech Vasek
+ */
+public class Mp3Source implements AudioSource {
+
+    /**
+     * Number of MPEG frames decoded before the wanted one after a restart of the decoding.
+     */
+    public static final int             PREROLL_FRAMES = 2;
+
+    private final File                  file;
+    private volatile Mp3FrameIndex      index;
+    private AudioInputStream            ais;
+    private AudioFormat                 format;
+    private long                        position;
+    private byte[]                      skipped;    // Data decoded only to be thrown away
+
+    /**
+     * Open given MP3 file and start building its index, if there is none.
+     *
+     * @param file MP3 file
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public Mp3Source(File file) throws IOException, UnsupportedAudioFileException {
+        this.file = file;
+        openAt(0);
+        index = Mp3FrameIndex.load(file);
+        if (index == null) {
+            try {
+                index = Mp3FrameIndex.fromToc(file);
+            } catch (IOException ex) {
+                System.err.println("Mp3Source: can't read table of contents: "+ex);
+            }
+            Thread scanner = new Thread(this::buildIndex, "Mp3Source index");
+            scanner.setDaemon(true);
+            scanner.start();
+        }
+    }
+
+    /**
+     * Build exact index of the file and store it for the next time.
+     */
+    private void buildIndex() {
+        try {
+            Mp3FrameIndex exact = Mp3FrameIndex.scan(file);
+            index = exact;
+            exact.save(file);
+        } catch (IOException ex) {
+            System.err.println("Mp3Source: can't index "+file+": "+ex);
+        }
+    }
+
+    /**
+     * Open decoding stream, which starts at given offset of the file.
+     *
+     * @param offset offset of an MPEG frame, 0 for the beginning of the file
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    private void openAt(long offset) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream in;
+        if (offset == 0) {
+            in = AudioSystem.getAudioInputStream(file);
+        } else {
+            InputStream fis = new FileInputStream(file);
+            long left = offset;
+            while (left > 0) {
+                long tmp = fis.skip(left);
+                if (tmp <= 0) {
+                    fis.close();
+                    throw new EOFException("Mp3Source: offset "+offset+" is out of "+file);
+                }
+                left -= tmp;
+            }
+            in = AudioSystem.getAudioInputStream(new BufferedInputStream(fis));
+        }
+        AudioFormat sourceAF = in.getFormat();
+        int ssib = SoundReader.DEFAULT_SSIB;
+        AudioFormat targetAF = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+                sourceAF.getSampleRate(), ssib, sourceAF.getChannels(),
+                sourceAF.getChannels() * (ssib / 8), sourceAF.getSampleRate(), false);
+        ais = AudioSystem.getAudioInputStream(targetAF, in);
+        format = ais.getFormat();
+    }
+
+    /**
+     * Return whether the exact index of the file is already available.
+     *
+     * @return true if seeking is exact and fast
+     */
+    public boolean isIndexed() {
+        Mp3FrameIndex idx = index;
+        return idx != null && idx.isExact();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        int read = ais.read(data, offset, length);
+        if (read > 0) {
+            position += read / format.getFrameSize();
+        }
+        return read;
+    }
+
+    @Override
+    public void seek(long frame) throws IOException {
+        frame = Math.max(0, frame);
+        Mp3FrameIndex idx = index;
+        try {
+            if (idx != null) {
+                // Restart the decoding only if it saves something, i.e. when moving
+                // backward or forward behind the frame the index points to
+                long from = Math.max(0, frame - (long)PREROLL_FRAMES * idx.getSamplesPerFrame());
+                long start = idx.getStartFrame(from);
+                if (frame < position || start > position) {
+                    ais.close();
+                    openAt(start == 0 ? 0 : idx.getOffset(from));
+                    position = start;
+                }
+            } else if (frame < position) {
+                ais.close();
+                openAt(0);
+                position = 0;
+            }
+        } catch (UnsupportedAudioFileException ex) {
+            throw new IOException(ex);
+        }
+
+        // Decode the rest up to the wanted frame
+        if (skipped == null) {
+            skipped = new byte[format.getFrameSize() * 1024];
+        }
+        while (position < frame) {
+            int len = (int)Math.min((frame - position) * format.getFrameSize(), skipped.length);
+            if (read(skipped, 0, len) < 0) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getFrameLength() {
+        Mp3FrameIndex idx = index;
+        return idx != null ? idx.getFrameLength() : ais.getFrameLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ais.close();
+    }
+
+}
@@ -0,0 +1,228 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decoded PCM data of recently played files, stored outside of the heap
+ * in direct byte buffers. Replaying, looping or seeking back in a cached file
+ * then costs no decoding at all.
+ *
+ * <p>File is cached while it is played from its beginning to its end,
+ * see {@link CachingSource}. Cached files are read by {@link CachedSource}.
+ * Total size of the data is bounded by the system property
+ * <code>fplayer.pcmCache.mb</code> ({@link #DEFAULT_MAX_MB} by default,
+ * 0 disables the cache), the least recently used files are forgotten first.
+ * Buffers of the copies, which are being made, count into the budget too,
+ * they are reserved by {@link #reserve(long)} before they are allocated.
+ * Mapped WAV files are never cached, there is nothing to decode.
+ *
+ * @author Vojtech Vasek
+ */
+public class PcmCache {
+
+    /**
+     * Default memory budget of the cache in MB.
+     */
+    public static final long    DEFAULT_MAX_MB = 256;
+    /**
+     * Size of one buffer of an entry.
+     */
+    public static final int     CHUNK_BYTES = 1 << 20;
+
+    private static PcmCache defaultCache;
+
+    private final long                      maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long                            size;
+    private long                            reserved;   // Bytes of the copies being made
+
+    /**
+     * Decoded data of one file.
+     */
+    static class Entry {
+
+        final AudioFormat       format;
+        final int               chunkBytes;     // Size of every buffer, whole number of frames
+        final List<ByteBuffer>  chunks = new ArrayList<>();
+        long                    bytes;          // Number of valid bytes in all buffers
+
+        /**
+         * Create empty entry.
+         *
+         * @param format format of the data
+         */
+        Entry(AudioFormat format) {
+            this.format = format;
+            chunkBytes = CHUNK_BYTES / format.getFrameSize() * format.getFrameSize();
+        }
+
+        /**
+         * Return number of cached frames.
+         *
+         * @return length of the data in frames
+         */
+        long getFrameLength() {
+            return bytes / format.getFrameSize();
+        }
+
+        /**
+         * Return memory occupied by the entry.
+         *
+         * @return capacity of all buffers in bytes
+         */
+        long capacity() {
+            return (long)chunks.size() * chunkBytes;
+        }
+    }
+
+    /**
+     * Create cache with given memory budget.
+     *
+     * @param maxBytes maximal size of all entries, 0 disables the cache
+     */
+    public PcmCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cache shared by the whole program.
+     *
+     * @return the default cache
+     */
+    public static synchronized PcmCache getDefault() {
+        if (defaultCache == null) {
+            long mb = Long.getLong("fplayer.pcmCache.mb", DEFAULT_MAX_MB);
+            defaultCache = new PcmCache(Math.max(0, mb) << 20);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Return maximal size of all entries.
+     *
+     * @return memory budget in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Open given file, from the cache if it is there. Otherwise the file is
+     * opened by {@link AudioSource#open(File)} and cached while it is being read.
+     *
+     * @param file audio file
+     * @return source of the file
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public AudioSource open(File file) throws IOException, UnsupportedAudioFileException {
+        String key = key(file);
+        Entry entry = get(key);
+        if (entry != null) {
+            return new CachedSource(entry);
+        }
+        AudioSource source = AudioSource.open(file);
+        if (maxBytes == 0 || source instanceof MappedWavSource) {
+            return source;
+        }
+        return new CachingSource(source, this, key);
+    }
+
+    /**
+     * Return key of given file, which changes when the file is modified.
+     *
+     * @param file audio file
+     * @return key of the entry
+     */
+    private static String key(File file) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    /**
+     * Return entry with given key and mark it as used.
+     *
+     * @param key key of the file
+     * @return the entry, null if the file is not cached
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Reserve memory for a buffer of a copy being made. The least recently
+     * used entries are forgotten, when the buffer does not fit into the budget.
+     *
+     * @param bytes size of the buffer
+     * @return true if the buffer may be allocated, false if the budget is used by other copies
+     */
+    synchronized boolean reserve(long bytes) {
+        if (reserved + bytes > maxBytes) {
+            return false;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size + reserved + bytes > maxBytes && it.hasNext()) {
+            size -= it.next().getValue().capacity();
+            it.remove();
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Return memory reserved by {@link #reserve(long)}, whose copy was abandoned.
+     *
+     * @param bytes size of the released buffers
+     */
+    synchronized void release(long bytes) {
+        reserved -= bytes;
+    }
+
+    /**
+     * Add complete entry into the cache and forget the least recently used
+     * entries, which do not fit into the budget anymore. Memory reserved
+     * for the buffers of the entry becomes the size of the entry.
+     *
+     * @param key key of the file
+     * @param entry decoded data of the whole file
+     */
+    synchronized void put(String key, Entry entry) {
+        reserved -= entry.capacity();
+        if (entry.capacity() > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.capacity();
+        }
+        size += entry.capacity();
+        // Sources reading the forgotten entries keep their buffers until they are closed
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size + reserved > maxBytes && it.hasNext()) {
+            Entry lru = it.next().getValue();
+            if (lru != entry) {
+                size -= lru.capacity();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return memory occupied by all entries.
+     *
+     * @return size of the cache in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,30 @@
+
+package com.kappa.fplayer.sound;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Chunk of raw audio data passed between the stages of playback.
+ * 
+ * @author Vojtech Vasek
+ */
+public class PcmChunk {
+    
+    public final byte[]     data;
+    public final ByteBuffer buffer;     // View of 'data' for the decoders
+    public int              length;     // Number of valid bytes in 'data'
+    public long             frame;      // Position of the first frame of the chunk in the track
+    public int              generation; // Number of seeks before the chunk was read
+    public Track            track;      // Track the chunk was read from
+    
+    /**
+     * Create chunk with given capacity.
+     * 
+     * @param capacity size of the data array in bytes
+     */
+    public PcmChunk(int capacity) {
+        data = new byte[capacity];
+        buffer = ByteBuffer.wrap(data);
+    }
+    
+}
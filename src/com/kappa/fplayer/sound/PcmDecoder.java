@@ -0,0 +1,269 @@
+
+package com.kappa.fplayer.sound;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Decoder of raw PCM frames into mono samples normalized into [-1,1].
+ * Decoding, normalization and averaging of the channels are done in one pass
+ * directly from the byte buffer into the caller's array, nothing is allocated
+ * per call.
+ *
+ * <p>The usual formats have their own decoders (16-bit stereo and mono,
+ * 24-bit packed, 32-bit integer and 32-bit float), any other signed integer
+ * format is decoded byte by byte by the generic one.
+ *
+ * @author Vojtech Vasek
+ */
+public abstract class PcmDecoder {
+
+    protected final ByteOrder   order;
+    protected final int         channels;
+    protected final int         frameSize;
+
+    /**
+     * Prepare decoder of given frame layout.
+     *
+     * @param order byte order of the samples
+     * @param channels number of channels in one frame
+     * @param frameSize number of bytes in one frame
+     */
+    protected PcmDecoder(ByteOrder order, int channels, int frameSize) {
+        this.order = order;
+        this.channels = channels;
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * Return whether there is a decoder of given audio format.
+     *
+     * @param format format of the audio data
+     * @return true for signed integer PCM of at least 16 bits and 32-bit
+     * float PCM with known frame layout and sample rate
+     */
+    public static boolean supports(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) {
+            if (bits != 32) {
+                return false;
+            }
+        } else if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || bits < 16) {
+            return false;
+        }
+        return bits % 8 == 0 && format.getChannels() > 0
+                && format.getFrameSize() == format.getChannels() * bits/8
+                && format.getSampleRate() != AudioSystem.NOT_SPECIFIED;
+    }
+
+    /**
+     * Return decoder of given audio format.
+     *
+     * @param format format of the data, signed integer or float PCM
+     * @return decoder of the format
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public static PcmDecoder forFormat(AudioFormat format) {
+        ByteOrder order = format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        int channels = format.getChannels();
+        int bits = format.getSampleSizeInBits();
+        int frameSize = format.getFrameSize();
+        if (channels < 1 || bits < 8 || bits % 8 != 0 || frameSize != channels * bits/8) {
+            throw new IllegalArgumentException("PcmDecoder: unsupported frame layout "+format);
+        }
+
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) && bits == 32) {
+            return new Float32(order, channels, frameSize);
+        }
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())) {
+            throw new IllegalArgumentException("PcmDecoder: unsupported encoding "+format);
+        }
+        switch (bits) {
+            case 16:
+                if (channels == 2) {
+                    return new Stereo16(order, channels, frameSize);
+                } else if (channels == 1) {
+                    return new Mono16(order, channels, frameSize);
+                }
+                break;
+            case 24:
+                return new Packed24(order, channels, frameSize);
+            case 32:
+                return new Int32(order, channels, frameSize);
+        }
+        return new Generic(order, channels, frameSize, bits/8);
+    }
+
+    /**
+     * Return number of bytes in one frame.
+     *
+     * @return size of the frame
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Decode given number of frames from the buffer.
+     * Byte order of the buffer is set to the order of this format.
+     *
+     * @param data raw frames
+     * @param offset index of the first byte of the first frame
+     * @param frames number of frames to be decoded
+     * @param out where the average of the channels of every frame will be stored
+     */
+    public abstract void decode(ByteBuffer data, int offset, int frames, double[] out);
+
+    /**
+     * Two channels of 16-bit samples.
+     */
+    private static class Stereo16 extends PcmDecoder {
+
+        Stereo16(ByteOrder order, int channels, int frameSize) {
+            super(order, channels, frameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            data.order(order);
+            double norm = 1.0 / 32768 / 2;
+            for (int i=0, pos=offset; i < frames; i++, pos += 4) {
+                out[i] = (data.getShort(pos) + data.getShort(pos + 2)) * norm;
+            }
+        }
+    }
+
+    /**
+     * One channel of 16-bit samples.
+     */
+    private static class Mono16 extends PcmDecoder {
+
+        Mono16(ByteOrder order, int channels, int frameSize) {
+            super(order, channels, frameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            data.order(order);
+            double norm = 1.0 / 32768;
+            for (int i=0, pos=offset; i < frames; i++, pos += 2) {
+                out[i] = data.getShort(pos) * norm;
+            }
+        }
+    }
+
+    /**
+     * Any number of channels of 24-bit samples packed in three bytes.
+     */
+    private static class Packed24 extends PcmDecoder {
+
+        private final boolean bigEndian;
+
+        Packed24(ByteOrder order, int channels, int frameSize) {
+            super(order, channels, frameSize);
+            bigEndian = order == ByteOrder.BIG_ENDIAN;
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            double norm = 1.0 / (1 << 23) / channels;
+            // Index of the most significant byte, which carries the sign, and of the least one
+            int high = bigEndian ? 0 : 2;
+            int low = 2 - high;
+            for (int i=0, pos=offset; i < frames; i++) {
+                int sum = 0;
+                for (int c=0; c < channels; c++, pos += 3) {
+                    sum += data.get(pos + high) << 16
+                            | (data.get(pos + 1) & 0xff) << 8
+                            | (data.get(pos + low) & 0xff);
+                }
+                out[i] = sum * norm;
+            }
+        }
+    }
+
+    /**
+     * Any number of channels of 32-bit integer samples.
+     */
+    private static class Int32 extends PcmDecoder {
+
+        Int32(ByteOrder order, int channels, int frameSize) {
+            super(order, channels, frameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            data.order(order);
+            // Sum of several full range samples does not fit into int
+            double norm = 1.0 / 2147483648.0 / channels;
+            for (int i=0, pos=offset; i < frames; i++) {
+                long sum = 0;
+                for (int c=0; c < channels; c++, pos += 4) {
+                    sum += data.getInt(pos);
+                }
+                out[i] = sum * norm;
+            }
+        }
+    }
+
+    /**
+     * Any number of channels of 32-bit float samples, already normalized.
+     */
+    private static class Float32 extends PcmDecoder {
+
+        Float32(ByteOrder order, int channels, int frameSize) {
+            super(order, channels, frameSize);
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            data.order(order);
+            double norm = 1.0 / channels;
+            for (int i=0, pos=offset; i < frames; i++) {
+                double sum = 0;
+                for (int c=0; c < channels; c++, pos += 4) {
+                    sum += data.getFloat(pos);
+                }
+                out[i] = sum * norm;
+            }
+        }
+    }
+
+    /**
+     * Any signed integer format, samples are assembled byte by byte.
+     */
+    private static class Generic extends PcmDecoder {
+
+        private final int       sampleBytes;
+        private final boolean   bigEndian;
+
+        Generic(ByteOrder order, int channels, int frameSize, int sampleBytes) {
+            super(order, channels, frameSize);
+            this.sampleBytes = sampleBytes;
+            bigEndian = order == ByteOrder.BIG_ENDIAN;
+        }
+
+        @Override
+        public void decode(ByteBuffer data, int offset, int frames, double[] out) {
+            double norm = Math.pow(2, 1 - 8*sampleBytes) / channels;
+            for (int i=0, pos=offset; i < frames; i++) {
+                long sum = 0;
+                for (int c=0; c < channels; c++, pos += sampleBytes) {
+                    // The most significant byte is taken with its sign
+                    int first = bigEndian ? pos : pos + sampleBytes - 1;
+                    int step = bigEndian ? 1 : -1;
+                    long value = data.get(first);
+                    for (int b=1, p = first + step; b < sampleBytes; b++, p += step) {
+                        value = value << 8 | (data.get(p) & 0xff);
+                    }
+                    sum += value;
+                }
+                out[i] = sum * norm;
+            }
+        }
+    }
+
+}
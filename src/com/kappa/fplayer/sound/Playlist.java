@@ -0,0 +1,72 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of files, which will be played after the current one.
+ * The queue is shared by the window, which fills it, and the {@link AudioReader},
+ * which takes the files from it, all methods are therefore synchronized.
+ *
+ * @author Vojtech Vasek
+ */
+public class Playlist {
+
+    private final ArrayDeque<File> files = new ArrayDeque<>();
+
+    /**
+     * Add file to the end of the queue.
+     *
+     * @param file audio file
+     */
+    public synchronized void add(File file) {
+        files.add(file);
+    }
+
+    /**
+     * Return the next file without removing it.
+     *
+     * @return the first file of the queue, null if the queue is empty
+     */
+    public synchronized File peek() {
+        return files.peek();
+    }
+
+    /**
+     * Remove the next file from the queue.
+     *
+     * @return the first file of the queue, null if the queue is empty
+     */
+    public synchronized File poll() {
+        return files.poll();
+    }
+
+    /**
+     * Remove all files from the queue.
+     */
+    public synchronized void clear() {
+        files.clear();
+    }
+
+    /**
+     * Return number of files in the queue.
+     *
+     * @return size of the queue
+     */
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * Return files in the queue.
+     *
+     * @return copy of the queue, the next file first
+     */
+    public synchronized List<File> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+}
@@ -1,7 +1,9 @@
 package com.kappa.fplayer.sound;
 
+import com.kappa.fplayer.fft.Stft;
 import com.kappa.fplayer.fft.Transform;
 import com.kappa.fplayer.graphics.Animator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * General structure of every sound reader, i.e. file, microphone readers...
@@ -15,21 +17,36 @@ public abstract class SoundReader extends Thread {
      * achieve better/cleaner time domain to frequency domain transformation.
      */
     public static enum WindowType {
-        rectangular, hamming, hanning;
+        rectangular, hamming, hanning, blackmanHarris, flatTop, kaiser;
     }
         
     /**
-     * Must be power of two, 4k is generaly recomended value.
+     * Any positive length can be used, 4k is generaly recomended value.
+     * Length can be matched to the period of the sound card or to a fixed
+     * duration, e.g. 480 samples for 10 ms at 48 kHz.
      */
     public static final int         DEFAULT_BUFFER_LENGTH   = 4096/4;
     public static final int         DEFAULT_SAMPLE_RATE     = 44100;
     public static final int         DEFAULT_SSIB            = 16;
     public static final int         DEFAULT_CHANNEL_COUNT   = 2;
     public static final WindowType  DEFAULT_WINDOW_TYPE     = WindowType.hamming;
+    /**
+     * Default distance of two analysed frames is buffer length divided by this
+     * number, i.e. the frames overlap by 75%.
+     */
+    public static final int         DEFAULT_HOP_DIVISOR     = 4;
+    public static final double      DEFAULT_KAISER_BETA     = 8.6;
+    
+    /**
+     * Window coefficients shared by all readers, key is composed from the window
+     * type (upper half) and the window length (lower half).
+     */
+    private static final ConcurrentHashMap<Long, double[]> WINDOWS = new ConcurrentHashMap<>();
 
     protected WindowType windowType;
     protected double[]   window;
     protected int        bufferLength;
+    protected int        hop;
     protected float      sampleRate;
     protected int        ssib;
     protected int        channelCount;
@@ -42,20 +59,128 @@ public abstract class SoundReader extends Thread {
         this.animator = animator;
         windowType = DEFAULT_WINDOW_TYPE;
         bufferLength = DEFAULT_BUFFER_LENGTH;
+        hop = Math.max(1, bufferLength / DEFAULT_HOP_DIVISOR);
         sampleRate = DEFAULT_SAMPLE_RATE;
         ssib = DEFAULT_SSIB;
         frameSize = channelCount * (ssib / 8);
-        switch (windowType) {
+        prepareWindow();
+        
+        if (animator != null) {
+            animator.setAudioInfo(bufferLength, sampleRate);
+        }
+    }
+    
+    /**
+     * Retrieve window function coefficients for current window type and buffer length.
+     */
+    private void prepareWindow() {
+        window = getWindow(windowType, bufferLength);
+    }
+    
+    /**
+     * Return coefficients of given window function.
+     * Coefficients are counted only once for every type and length and then
+     * shared, therefore the returned array must not be modified.
+     * 
+     * @param type type of the window function
+     * @param size length of the window
+     * @return window function coefficients
+     */
+    public static double[] getWindow(WindowType type, int size) {
+        long key = ((long)type.ordinal() << 32) | size;
+        double[] window = WINDOWS.get(key);
+        if (window == null) {
+            window = createWindow(type, size);
+            double[] prev = WINDOWS.putIfAbsent(key, window);
+            if (prev != null) {
+                window = prev;
+            }
+        }
+        return window;
+    }
+    
+    /**
+     * Count coefficients of given window function.
+     * 
+     * @param type type of the window function
+     * @param size length of the window
+     * @return window function coefficients
+     */
+    private static double[] createWindow(WindowType type, int size) {
+        switch (type) {
             case hanning:
-                window = Transform.hanningWindow(bufferLength);
-                break;
+                return Transform.hanningWindow(size);
             case hamming:
-                window = Transform.hammingWindow(bufferLength, 0.53836, 0.46164);
-                break;
+                return Transform.hammingWindow(size, 0.53836, 0.46164);
+            case blackmanHarris:
+                return Transform.blackmanHarrisWindow(size);
+            case flatTop:
+                return Transform.flatTopWindow(size);
+            case kaiser:
+                return Transform.kaiserWindow(size, DEFAULT_KAISER_BETA);
             default:
                 // No window usage (rectangular window has neutral effect)
-                window = Transform.rectangularWindow(bufferLength);
+                return Transform.rectangularWindow(size);
         }
+    }
+    
+    /**
+     * Return coefficients of given window function as a sum of cosines,
+     * see {@link Transform#cosineSumWindow(int, double[])}.
+     * 
+     * @param type type of the window function
+     * @return coefficients of the cosines, null if the window is not a sum of cosines
+     */
+    public static double[] getCosineTerms(WindowType type) {
+        switch (type) {
+            case rectangular:
+                return new double[] {1.0};
+            case hanning:
+                return new double[] {0.5, 0.5};
+            case hamming:
+                return new double[] {0.53836, 0.46164};
+            case blackmanHarris:
+                return Transform.blackmanHarrisTerms();
+            case flatTop:
+                return Transform.flatTopTerms();
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Set type of the window function applied on every buffer.
+     * Must be called before this reader is started.
+     * 
+     * @param windowType type of the window function
+     */
+    public void setWindowType(WindowType windowType) {
+        this.windowType = windowType;
+        prepareWindow();
+    }
+    
+    /**
+     * Return type of the window function applied on every buffer.
+     * 
+     * @return type of the window function
+     */
+    public WindowType getWindowType() {
+        return windowType;
+    }
+    
+    /**
+     * Set number of samples analysed at once, i.e. length of the transform.
+     * Must be called before this reader is started.
+     * 
+     * @param bufferLength number of samples in one buffer, any positive value
+     */
+    public void setBufferLength(int bufferLength) {
+        if (bufferLength < 1) {
+            throw new IllegalArgumentException("SoundReader: buffer length must be positive, got "+bufferLength);
+        }
+        this.bufferLength = bufferLength;
+        hop = Math.max(1, bufferLength / DEFAULT_HOP_DIVISOR);
+        prepareWindow();
         
         if (animator != null) {
             animator.setAudioInfo(bufferLength, sampleRate);
@@ -63,31 +188,56 @@ public abstract class SoundReader extends Thread {
     }
     
     /**
-     * For given multiple channels, return one, that is an average from
-     * all of them.
+     * Set number of samples between two consecutive analysed frames.
+     * Smaller hop gives more spectra per second, buffer length stays the same.
+     * Must be called before this reader is started.
      * 
-     * @param channels channels to be averaged
-     * @return one channel that is an average of the input ones
+     * @param hop number of samples from 1 to buffer length
      */
-    protected double[] averageChannels(double[][] channels) {
-        if (channels == null || channels.length == 0) {
-            return null;
+    public void setHop(int hop) {
+        if (hop < 1 || hop > bufferLength) {
+            throw new IllegalArgumentException("SoundReader: hop must be from 1 to "+bufferLength+", got "+hop);
         }
-        
-        // For better performance
-        double lenDiv = 1.0 / channels.length;
-        
-        double[] ret = new double[channels[0].length];
-        double average;
-        for (int i=0; i < channels[0].length; i++) {
-            average = 0;
-            for (double[] channel : channels) {
-                average += channel[i];
+        this.hop = hop;
+    }
+    
+    /**
+     * Return number of samples between two consecutive analysed frames.
+     * 
+     * @return hop size
+     */
+    public int getHop() {
+        return hop;
+    }
+    
+    /**
+     * Prepare short-time Fourier transform of this reader, which sends every
+     * counted spectrum to the Animator.
+     * Only the bins shown by the Animator are requested, so the transform can
+     * switch to the sliding DFT if it is cheaper.
+     * 
+     * @return transform for current buffer length, hop and window
+     */
+    protected Stft createStft() {
+        Stft stft = new Stft(bufferLength, hop, window, (re, im) -> {
+            animator.setData(re, im);
+            try {
+                animator.updateState();
+            } catch (Exception ex) {
+                System.err.println(ex);
             }
-            ret[i] = average * lenDiv;
-        }
-        
-        return ret;
+        });
+        stft.setWatchedBins(animator.getUsedBins(), getCosineTerms(windowType));
+        return stft;
+    }
+    
+    /**
+     * Return number of samples analysed at once.
+     * 
+     * @return number of samples in one buffer
+     */
+    public int getBufferLength() {
+        return bufferLength;
     }
     
     /**
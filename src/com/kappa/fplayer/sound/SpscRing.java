@@ -0,0 +1,102 @@
+package com.kappa.fplayer.sound;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free ring buffer for exactly one producer thread and one consumer thread.
+ * All slots are allocated in advance and reused, elements are therefore not passed
+ * between the threads but filled in place: producer claims free slot, fills it and
+ * publishes it, consumer peeks the oldest published slot, processes it and releases it.
+ * Neither side ever blocks, when the ring is full (or empty) the call returns null
+ * and the caller decides whether to wait, drop the data or do something else.
+ *
+ * @author Vojtech Vasek
+ * @param <T> type of the slots
+ */
+public class SpscRing<T> {
+
+    private final Object[]      slots;
+    private final int           mask;
+    private final AtomicLong    head = new AtomicLong();    // Index of the oldest published slot
+    private final AtomicLong    tail = new AtomicLong();    // Index of the next slot to be published
+
+    /**
+     * Create the ring and all its slots.
+     *
+     * @param capacity minimal number of slots, rounded up to power of two
+     * @param factory creates the slots
+     */
+    public SpscRing(int capacity, Supplier<T> factory) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Object[size];
+        for (int i=0; i < size; i++) {
+            slots[i] = factory.get();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Return free slot to be filled by the producer.
+     * Slot is not visible to the consumer until {@link #publish()} is called.
+     *
+     * @return free slot, null if the ring is full
+     */
+    @SuppressWarnings("unchecked")
+    public T claim() {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return null;
+        }
+        return (T)slots[(int)t & mask];
+    }
+
+    /**
+     * Make the last claimed slot visible to the consumer.
+     */
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Return the oldest published slot to the consumer.
+     * Slot stays in the ring until {@link #release()} is called.
+     *
+     * @return the oldest slot, null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        return (T)slots[(int)h & mask];
+    }
+
+    /**
+     * Return the last peeked slot back to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Return number of published slots waiting for the consumer.
+     * Can be called from any thread, the value is only a snapshot.
+     *
+     * @return number of slots in the queue
+     */
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+    /**
+     * Return maximal number of slots in the queue.
+     *
+     * @return capacity of the ring
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+}
@@ -0,0 +1,122 @@
+
+package com.kappa.fplayer.sound;
+
+import java.io.File;
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Audio source decoded by the Java Sound API (and its installed providers, e.g. MP3SPI).
+ * PCM data are kept in their own format if the speakers support it,
+ * anything else is converted into 16-bit signed little endian PCM.
+ * Seeking forward skips the data, seeking backward opens the file again.
+ *
+ * @author Vojtech Vasek
+ */
+public class StreamAudioSource implements AudioSource {
+
+    private final File          file;
+    private AudioInputStream    ais;
+    private AudioFormat         format;
+    private long                position;
+
+    /**
+     * Open given audio file.
+     *
+     * @param file audio file
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    public StreamAudioSource(File file) throws IOException, UnsupportedAudioFileException {
+        this.file = file;
+        open();
+    }
+
+    /**
+     * Open the stream from the beginning of the file.
+     *
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    private void open() throws IOException, UnsupportedAudioFileException {
+        AudioInputStream in = AudioSystem.getAudioInputStream(file);
+        AudioFormat sourceAF = in.getFormat();
+
+        if (PcmDecoder.supports(sourceAF) && AudioSystem.isLineSupported(
+                new DataLine.Info(SourceDataLine.class, sourceAF, AudioSystem.NOT_SPECIFIED))) {
+            ais = in;
+        } else {
+            int ssib = SoundReader.DEFAULT_SSIB;
+            AudioFormat targetAF = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+                    sourceAF.getSampleRate(), ssib, sourceAF.getChannels(),
+                    sourceAF.getChannels() * (ssib / 8), sourceAF.getSampleRate(), false);
+            ais = AudioSystem.getAudioInputStream(targetAF, in);
+        }
+        format = ais.getFormat();
+        position = 0;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        int read = ais.read(data, offset, length);
+        if (read > 0) {
+            position += read / format.getFrameSize();
+        }
+        return read;
+    }
+
+    @Override
+    public void seek(long frame) throws IOException {
+        if (frame < position) {
+            ais.close();
+            try {
+                open();
+            } catch (UnsupportedAudioFileException ex) {
+                throw new IOException(ex);
+            }
+        }
+        long left = (frame - position) * format.getFrameSize();
+        byte[] skipped = null;
+        while (left > 0) {
+            long tmp = ais.skip(left);
+            if (tmp <= 0) {
+                // Some decoders can not skip, the data must be read then
+                if (skipped == null) {
+                    skipped = new byte[format.getFrameSize() * 1024];
+                }
+                tmp = ais.read(skipped, 0, (int)Math.min(left, skipped.length));
+                if (tmp < 0) {
+                    break;
+                }
+            }
+            left -= tmp;
+        }
+        position = frame - left / format.getFrameSize();
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getFrameLength() {
+        return ais.getFrameLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ais.close();
+    }
+
+}
@@ -0,0 +1,224 @@
+
+package com.kappa.fplayer.sound;
+
+import com.kappa.fplayer.analysis.SpectrumFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * One track of the playback. The file is opened (through the {@link PcmCache})
+ * and the first {@link #DEFAULT_PREFETCH_SECONDS} of it are decoded
+ * in a background thread, so the track is ready to be played the moment
+ * the previous one ends. Cached spectra of the file are looked up there too,
+ * hashing the file must not delay the start of the track. Reading waits
+ * for the background work, if it has not finished yet, closing never waits.
+ *
+ * @author Vojtech Vasek
+ */
+public class Track implements AudioSource {
+
+    /**
+     * Length of the audio decoded in advance.
+     */
+    public static final double  DEFAULT_PREFETCH_SECONDS = 2;
+
+    public final File               file;
+    SpectrumFile                    spectra;    // Cached band levels, checked by the AudioReader
+    private final Function<File, SpectrumFile> lookup;
+    private final FutureTask<AudioSource> opening;
+    private AudioSource             source;
+    private AudioSource             opened;     // Source opened by the prefetch, touched only by its thread
+    private byte[]                  head;       // Prefetched beginning of the track
+    private int                     headLength;
+    private int                     headPosition;
+    private long                    position;
+
+    /**
+     * Start opening given file in the background.
+     *
+     * @param file audio file
+     */
+    public Track(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Start opening given file and looking up its cached spectra in the background.
+     *
+     * @param file audio file
+     * @param lookup finder of the cached spectra of the file, null if they are not needed
+     */
+    public Track(File file, Function<File, SpectrumFile> lookup) {
+        this.file = file;
+        this.lookup = lookup;
+        opening = new FutureTask<>(this::prefetch);
+        Thread t = new Thread(() -> {
+            opening.run();
+            if (opening.isCancelled()) {
+                closeOpened();
+            }
+        }, "Track prefetch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Open the file, read its beginning and look up its spectra.
+     *
+     * @return opened source
+     * @throws IOException
+     * @throws UnsupportedAudioFileException
+     */
+    private AudioSource prefetch() throws IOException, UnsupportedAudioFileException {
+        AudioSource src = PcmCache.getDefault().open(file);
+        opened = src;
+        AudioFormat format = src.getFormat();
+        int frameSize = format.getFrameSize();
+        head = new byte[(int)(DEFAULT_PREFETCH_SECONDS * format.getSampleRate()) * frameSize];
+        try {
+            int read;
+            while (headLength < head.length && !opening.isCancelled()
+                    && (read = src.read(head, headLength, head.length - headLength)) != -1) {
+                headLength += read;
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            // One of the known MP3SPI1.9.5 bugs, the rest is read during the playback
+        }
+        if (lookup != null && !opening.isCancelled()) {
+            spectra = lookup.apply(file);
+        }
+        return src;
+    }
+
+    /**
+     * Close the source opened by the prefetch of the track, which was closed
+     * before it was opened. Called by the prefetch thread.
+     */
+    private void closeOpened() {
+        if (opened != null) {
+            try {
+                opened.close();
+            } catch (IOException ex) {
+                System.err.println("Track: can't close "+file+": "+ex);
+            }
+        }
+    }
+
+    /**
+     * Wait until the track is opened.
+     *
+     * @return opened source
+     * @throws IOException if the file can not be opened
+     */
+    private AudioSource source() throws IOException {
+        if (source == null) {
+            try {
+                source = opening.get();
+            } catch (InterruptedException ex) {
+                throw new IOException("Track: opening of "+file+" interrupted", ex);
+            } catch (CancellationException ex) {
+                throw new IOException("Track: "+file+" was closed", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Track: can't open "+file+": "+ex.getCause(), ex.getCause());
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Wait until the track is opened and return its format.
+     *
+     * @return format of the data
+     * @throws IOException if the file can not be opened
+     */
+    public AudioFormat open() throws IOException {
+        return source().getFormat();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        try {
+            return source().getFormat();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        AudioSource src = source();
+        int frameSize = src.getFormat().getFrameSize();
+        if (headPosition < headLength) {
+            int count = Math.min(length / frameSize * frameSize, headLength - headPosition);
+            System.arraycopy(head, headPosition, data, offset, count);
+            headPosition += count;
+            position += count / frameSize;
+            return count;
+        }
+        int read = src.read(data, offset, length);
+        if (read > 0) {
+            position += read / frameSize;
+        }
+        return read;
+    }
+
+    @Override
+    public void seek(long frame) throws IOException {
+        AudioSource src = source();
+        long headFrames = headLength / src.getFormat().getFrameSize();
+        if (frame < headFrames) {
+            if (src.getFramePosition() != headFrames) {
+                src.seek(headFrames);
+            }
+            headPosition = (int)frame * src.getFormat().getFrameSize();
+            position = frame;
+        } else {
+            headPosition = headLength;
+            src.seek(frame);
+            position = src.getFramePosition();
+        }
+    }
+
+    @Override
+    public long getFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getFrameLength() {
+        try {
+            return source().getFrameLength();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Close the track. Track, which is still being opened, is closed
+     * by its prefetch thread, once the file is opened.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (opening.cancel(false)) {
+            return;
+        }
+        // Opening has finished, nothing is waited for
+        try {
+            source().close();
+        } catch (IOException ex) {
+            if (source != null) {
+                throw ex;
+            }
+            // The track was never opened, there is nothing to close
+        }
+    }
+
+}